@@ -0,0 +1,147 @@
+package com.vunyunt.omp.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vunyunt.omp.persistence.library.Music;
+
+/**
+ * Measures the heap used per music, and the memory allocated to display the name of
+ * a music, with the map based Music used before and the compact Music.
+ *
+ * Usage: MusicHeapBenchmark [musics]
+ * Musics are built from the header keys of a typical beatmap, as read by
+ * OsuHeaderParser, with 100000 musics by default.
+ *
+ * @author vun
+ *
+ */
+public class MusicHeapBenchmark
+{
+	/**
+	 * Header keys of a typical beatmap, with the metadata added by BeatmapScanner
+	 */
+	private static final String[] KEYS = new String[]
+	{
+		"AudioFilename", "AudioLeadIn", "PreviewTime", "Countdown", "SampleSet", "StackLeniency", "Mode",
+		"LetterboxInBreaks", "WidescreenStoryboard", "Title", "TitleUnicode", "Artist", "ArtistUnicode",
+		"Creator", "Version", "Source", "Tags", "BeatmapID", "BeatmapSetID", "Length"
+	};
+
+	public static void main(String[] args)
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		long before = usedHeap();
+		Object[] legacy = new Object[count];
+		for(int i = 0; i < count; i++)
+		{
+			legacy[i] = new LegacyMusic("id" + i, "folder" + (i / 4), "beatmap" + i + ".osu", createMetadata(i));
+		}
+		long legacyHeap = usedHeap() - before;
+		long legacyName = measureNames(legacy, true);
+		legacy = null;
+
+		before = usedHeap();
+		Object[] compact = new Object[count];
+		for(int i = 0; i < count; i++)
+		{
+			compact[i] = new Music("id" + i, "folder" + (i / 4), "beatmap" + i + ".osu", createMetadata(i));
+		}
+		long compactHeap = usedHeap() - before;
+		long compactName = measureNames(compact, false);
+
+		report("Map based", legacyHeap, legacyName, count);
+		report("Compact", compactHeap, compactName, count);
+	}
+
+	/**
+	 * Metadata of a beatmap, every value a new string like read from a beatmap file
+	 */
+	private static Map<String, String> createMetadata(int i)
+	{
+		Map<String, String> metadata = new HashMap<>();
+		for (String key : KEYS)
+		{
+			metadata.put(key, new String(key.substring(0, 3) + (i % 7)));
+		}
+		metadata.put("AudioFilename", new String("audio" + (i / 4) + ".mp3"));
+		metadata.put("Title", new String("Some title of a song " + (i / 4)));
+		metadata.put("TitleUnicode", new String("Some title of a song " + (i / 4)));
+		metadata.put("Artist", new String("Artist " + (i % 2000)));
+		metadata.put("ArtistUnicode", new String("Artist " + (i % 2000)));
+		metadata.put("Creator", new String("Creator " + (i % 1000)));
+		metadata.put("Version", new String("Insane"));
+		metadata.put("Tags", new String("tag1 tag2 tag3 anime game " + (i % 50)));
+		metadata.put("BeatmapID", new String(Integer.toString(100000 + i)));
+		metadata.put("BeatmapSetID", new String(Integer.toString(10000 + i / 4)));
+		metadata.put("Length", new String(Integer.toString(60000 + i)));
+		return metadata;
+	}
+
+	/**
+	 * Displays the name of each music 10 times, as list cells do while scrolling
+	 *
+	 * @return Bytes allocated
+	 */
+	private static long measureNames(Object[] musics, boolean legacy)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		int length = 0;
+		for(int n = 0; n < 10; n++)
+		{
+			for (Object m : musics)
+			{
+				length += legacy ? ((LegacyMusic) m).getName().length() : ((Music) m).getName().length();
+			}
+		}
+		if(length == 0)
+		{
+			System.out.println();
+		}
+		return threads.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	private static void report(String name, long heap, long nameBytes, int count)
+	{
+		System.out.println(String.format("%-10s %8d KB heap, %6d bytes per music, %10d KB allocated by names",
+				name, heap / 1024, heap / count, nameBytes / 1024));
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Music as it was before the compact representation
+	 */
+	private static class LegacyMusic
+	{
+		private String mId;
+		private String mFolder;
+		private String mBeatmapFileName;
+		private Map<String, String> mMetadata;
+
+		private LegacyMusic(String id, String folder, String beatmapFileName, Map<String, String> metadata)
+		{
+			mId = id;
+			mFolder = folder;
+			mBeatmapFileName = beatmapFileName;
+			mMetadata = metadata;
+		}
+
+		private String getName()
+		{
+			return mMetadata.get("Artist") + " - " + mMetadata.get("Title") + " (" + mMetadata.get("AudioFilename") + ")";
+		}
+	}
+}
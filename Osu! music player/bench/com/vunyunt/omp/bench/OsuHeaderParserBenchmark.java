@@ -0,0 +1,173 @@
+package com.vunyunt.omp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+
+import com.vunyunt.omp.persistence.library.OsuHeaderParser;
+
+/**
+ * Compares {@link OsuHeaderParser} with the LineIterator based section reader it replaced.
+ *
+ * Usage: OsuHeaderParserBenchmark &lt;Songs folder&gt; [max beatmaps] [rounds]
+ *
+ * @author vun
+ *
+ */
+public class OsuHeaderParserBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: OsuHeaderParserBenchmark <Songs folder> [max beatmaps] [rounds]");
+			return;
+		}
+
+		int maxBeatmaps = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		List<File> beatmaps = listBeatmaps(new File(args[0]), maxBeatmaps);
+		System.out.println("Beatmaps: " + beatmaps.size() + ", rounds: " + rounds);
+
+		OsuHeaderParser parser = new OsuHeaderParser();
+
+		// Warm up both paths and compare their output
+		int differences = 0;
+		for (File f : beatmaps)
+		{
+			if(!parseLegacy(f).equals(parser.parse(f)))
+			{
+				differences++;
+			}
+		}
+		System.out.println("Beatmaps with different results: " + differences
+				+ " (values containing ':' are dropped by the LineIterator reader)");
+
+		long legacyNanos = 0;
+		long parserNanos = 0;
+		for(int r = 0; r < rounds; r++)
+		{
+			long start = System.nanoTime();
+			for (File f : beatmaps)
+			{
+				parseLegacy(f);
+			}
+			legacyNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (File f : beatmaps)
+			{
+				parser.parse(f);
+			}
+			parserNanos += System.nanoTime() - start;
+		}
+
+		report("LineIterator readSection", legacyNanos, beatmaps.size() * rounds);
+		report("OsuHeaderParser", parserNanos, beatmaps.size() * rounds);
+	}
+
+	private static void report(String name, long nanos, int beatmaps)
+	{
+		System.out.println(String.format("%-26s %8d ms total, %6.1f us per beatmap", name, nanos / 1000000, nanos / 1000.0 / beatmaps));
+	}
+
+	private static List<File> listBeatmaps(File songsFolder, int max)
+	{
+		List<File> beatmaps = new ArrayList<>();
+		File dirs[] = songsFolder.listFiles();
+		if(dirs == null)
+		{
+			return beatmaps;
+		}
+
+		for (File dir : dirs)
+		{
+			File files[] = dir.listFiles();
+			if(files == null)
+			{
+				continue;
+			}
+
+			for (File f : files)
+			{
+				if(f.getName().endsWith(".osu"))
+				{
+					beatmaps.add(f);
+					if(beatmaps.size() >= max)
+					{
+						return beatmaps;
+					}
+				}
+			}
+		}
+
+		return beatmaps;
+	}
+
+	/**
+	 * The header reading of OsuMusicLibrary.importMusics before OsuHeaderParser
+	 */
+	private static Map<String, String> parseLegacy(File beatmapFile) throws IOException
+	{
+		LineIterator it = FileUtils.lineIterator(beatmapFile);
+		try
+		{
+			String line;
+			int sectionToProcess = 2;
+			int processedSection = 0;
+
+			Map<String, String> metadata = new HashMap<String, String>();
+
+			while(it.hasNext() && (line = it.next()) != null && processedSection < sectionToProcess)
+			{
+				if(line.startsWith("["))
+				{
+					++processedSection;
+					switch(line.toLowerCase())
+					{
+					case "[general]":
+					case "[metadata]":
+						metadata.putAll(readSection(it));
+						break;
+					default:
+						--processedSection;
+						break;
+					}
+				}
+			}
+
+			return metadata;
+		}
+		finally
+		{
+			it.close();
+		}
+	}
+
+	private static Map<String, String> readSection(LineIterator it)
+	{
+		Map<String, String> kvMap = new HashMap<String, String>();
+
+		String line;
+		while(it.hasNext() && !(line = it.next().trim()).startsWith("["))
+		{
+			if(line != null && line.length() > 0)
+			{
+				String tokens[] = line.split(":");
+				if(tokens.length == 2)
+				{
+					kvMap.put(tokens[0].trim(), tokens[1].trim());
+				}
+			}
+		}
+
+		return kvMap;
+	}
+}
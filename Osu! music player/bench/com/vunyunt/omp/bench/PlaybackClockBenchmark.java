@@ -0,0 +1,151 @@
+package com.vunyunt.omp.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.vunyunt.omp.media.audio.PlaybackClock;
+
+/**
+ * Compares the time drawn on each frame by a visualization reading the last time
+ * reported by the player, and sampling a PlaybackClock.
+ *
+ * Usage: PlaybackClockBenchmark [seconds]
+ * A player is simulated on a virtual timeline of 300 seconds by default: its audio runs
+ * 0.2% faster than System.nanoTime, it reports its time every 50 to 150ms with up to 30ms
+ * of delay, and it is seeked forward once halfway. Frames are drawn at 60 fps.
+ *
+ * @author vun
+ *
+ */
+public class PlaybackClockBenchmark
+{
+	private static final long FRAME_NANOS = 1000000000L / 60;
+	private static final double AUDIO_RATE = 1.002;
+
+	public static void main(String[] args)
+	{
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		long endNanos = seconds * 1000000000L;
+		long seekNanos = endNanos / 2;
+		double seekOffsetMillis = 30000;
+
+		Random random = new Random(42);
+		PlaybackClock clock = new PlaybackClock();
+		clock.setRunning(true, 0, 0);
+
+		Stats raw = new Stats();
+		Stats interpolated = new Stats();
+
+		double reported = 0;
+		long nextReport = 0;
+		boolean seeked = false;
+		for(long now = 0; now < endNanos; now += FRAME_NANOS)
+		{
+			// Reports sent since the previous frame, delivered late
+			while(nextReport <= now)
+			{
+				long delay = (long) (random.nextDouble() * 30000000L);
+				reported = audioTime(nextReport - delay, seekNanos, seekOffsetMillis);
+				clock.update(reported, nextReport);
+				nextReport += 50000000L + (long) (random.nextDouble() * 100000000L);
+			}
+
+			if(!seeked && now >= seekNanos)
+			{
+				seeked = true;
+				clock.jump(audioTime(now, seekNanos, seekOffsetMillis), now);
+			}
+
+			double truth = audioTime(now, seekNanos, seekOffsetMillis);
+			raw.add(reported, truth, now >= seekNanos && now < seekNanos + 500000000L);
+			interpolated.add(clock.getTimeMillis(now), truth, now >= seekNanos && now < seekNanos + 500000000L);
+		}
+
+		raw.report("Last reported time");
+		interpolated.report("PlaybackClock");
+
+		measureSampling(clock);
+	}
+
+	/**
+	 * Time of the simulated audio, in milliseconds
+	 */
+	private static double audioTime(long nanos, long seekNanos, double seekOffsetMillis)
+	{
+		double time = Math.max(0, nanos) / 1000000.0 * AUDIO_RATE;
+		return nanos >= seekNanos ? time + seekOffsetMillis : time;
+	}
+
+	private static void measureSampling(PlaybackClock clock)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		int samples = 10000000;
+		double sink = 0;
+
+		// Warm up
+		for(int i = 0; i < samples; i++)
+		{
+			sink += clock.getTimeMillis(i);
+		}
+
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		long startTime = System.nanoTime();
+		for(int i = 0; i < samples; i++)
+		{
+			sink += clock.getTimeMillis(i);
+		}
+		long elapsed = System.nanoTime() - startTime;
+		allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+
+		System.out.println(String.format("Sampling: %.1fns per sample, %d bytes allocated over %d samples (%s)",
+				elapsed / (double) samples, allocated, samples, sink > 0 ? "ok" : "-"));
+	}
+
+	private static class Stats
+	{
+		private long mFrames = 0;
+		private double mErrorSum = 0;
+		private double mErrorMax = 0;
+
+		private double mPrevious = Double.NaN;
+		private double mStepSum = 0;
+		private double mStepSquareSum = 0;
+		private long mSteps = 0;
+		private long mStalls = 0;
+		private long mBackwards = 0;
+
+		/**
+		 * @param settling Frames right after the seek are not counted in the error
+		 */
+		private void add(double time, double truth, boolean settling)
+		{
+			mFrames++;
+			if(!settling)
+			{
+				double error = Math.abs(time - truth);
+				mErrorSum += error;
+				mErrorMax = Math.max(mErrorMax, error);
+			}
+
+			if(!Double.isNaN(mPrevious) && !settling)
+			{
+				double step = time - mPrevious;
+				mStepSum += step;
+				mStepSquareSum += step * step;
+				mSteps++;
+				if(step == 0) mStalls++;
+				if(step < 0) mBackwards++;
+			}
+			mPrevious = time;
+		}
+
+		private void report(String name)
+		{
+			double mean = mStepSum / mSteps;
+			double deviation = Math.sqrt(mStepSquareSum / mSteps - mean * mean);
+			System.out.println(String.format("%s: error %.1fms mean, %.1fms max; frame step %.2fms +/- %.2fms, "
+					+ "%d frames without progress, %d backwards over %d frames",
+					name, mErrorSum / mFrames, mErrorMax, mean, deviation, mStalls, mBackwards, mFrames));
+		}
+	}
+}
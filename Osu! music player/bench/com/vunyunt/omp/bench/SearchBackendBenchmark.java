@@ -0,0 +1,119 @@
+package com.vunyunt.omp.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vunyunt.omp.persistence.AppConfig;
+import com.vunyunt.omp.persistence.library.MemoryMusicIndex;
+import com.vunyunt.omp.persistence.library.Music;
+import com.vunyunt.omp.persistence.library.MusicIndex;
+import com.vunyunt.omp.persistence.library.MusicSort;
+import com.vunyunt.omp.persistence.library.SearchBackend;
+
+/**
+ * Compares the search latency and the heap used by the Lucene search backend
+ * (MusicIndex) and the in-memory one (MemoryMusicIndex).
+ *
+ * Usage: SearchBackendBenchmark &lt;index folder&gt; [queries per round]
+ * A synthetic library of 40000 musics is indexed if the folder has no index.
+ * The query cache is disabled, so that every query is searched.
+ *
+ * @author vun
+ *
+ */
+public class SearchBackendBenchmark
+{
+	private static final String[] QUERIES = new String[] { "a", "love", "night", "remix", "ka", "tv size", "xyz", "dream tag4" };
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: SearchBackendBenchmark <index folder> [queries per round]");
+			return;
+		}
+
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		AppConfig config = new AppConfig();
+		config.searchCacheSize = 0;
+
+		long heapBefore = usedHeap();
+		MusicIndex index = new MusicIndex(args[0], config);
+		if(index.isEmpty())
+		{
+			System.out.println("Creating synthetic index...");
+			createIndex(index, 40000);
+		}
+		long luceneHeap = usedHeap() - heapBefore;
+
+		heapBefore = usedHeap();
+		MemoryMusicIndex memory = new MemoryMusicIndex(index);
+		long buildStart = System.nanoTime();
+		memory.refresh();
+		long buildTime = System.nanoTime() - buildStart;
+		long memoryHeap = usedHeap() - heapBefore;
+
+		System.out.println(String.format("%d musics, in-memory index built in %d ms", memory.size(), buildTime / 1000000));
+		System.out.println(String.format("%-10s %8d KB heap", "Lucene", luceneHeap / 1024));
+		System.out.println(String.format("%-10s %8d KB heap", "Memory", memoryHeap / 1024));
+
+		for (MusicSort sort : new MusicSort[] { MusicSort.RELEVANCE, MusicSort.TITLE })
+		{
+			// Warm up both backends
+			run(index, sort, queries);
+			run(memory, sort, queries);
+
+			report("Lucene", sort, run(index, sort, queries), queries);
+			report("Memory", sort, run(memory, sort, queries), queries);
+		}
+
+		index.close();
+	}
+
+	/**
+	 * Searches the queries in turn and fetches the first page of each
+	 *
+	 * @return Time taken in nanoseconds
+	 */
+	private static long run(SearchBackend backend, MusicSort sort, int count) throws IOException
+	{
+		long start = System.nanoTime();
+		for(int i = 0; i < count; i++)
+		{
+			backend.search(QUERIES[i % QUERIES.length], null, null, sort, 100).nextPage();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, MusicSort sort, long nanos, int queries)
+	{
+		System.out.println(String.format("%-10s %-10s %8d ms total, %8.1f us per query", name, sort.name(), nanos / 1000000, nanos / 1000.0 / queries));
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void createIndex(MusicIndex index, int musics) throws IOException
+	{
+		String[] words = new String[] { "love", "night", "remix", "star", "dream", "fire", "heart", "tv", "size", "kawaii" };
+		for(int i = 0; i < musics; i++)
+		{
+			Map<String, String> metadata = new HashMap<>();
+			metadata.put("Title", words[i % words.length] + " " + words[(i / 7) % words.length] + " " + i);
+			metadata.put("Artist", "artist" + (i % 997));
+			metadata.put("AudioFilename", "audio" + i + ".mp3");
+			metadata.put("Tags", words[(i / 3) % words.length] + " tag" + (i % 101));
+			index.addNewMusic(new Music(Integer.toString(i), "folder" + i, "beatmap" + i + ".osu", metadata));
+		}
+		index.commit();
+	}
+}
@@ -0,0 +1,129 @@
+package com.vunyunt.omp.bench;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Measures the per-query latency of opening a new reader for every query, as
+ * MusicIndex used to, against sharing one searcher through a SearcherManager.
+ *
+ * Usage: SearchLatencyBenchmark &lt;index folder&gt; [queries per round]
+ * A synthetic index of 40000 musics is created if the folder has no index.
+ *
+ * @author vun
+ *
+ */
+public class SearchLatencyBenchmark
+{
+	private static final String[] QUERIES = new String[] { "a", "love", "night", "remix", "ka", "tv size", "xyz" };
+
+	public static void main(String[] args) throws IOException, ParseException
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: SearchLatencyBenchmark <index folder> [queries per round]");
+			return;
+		}
+
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		Analyzer analyzer = new SimpleAnalyzer();
+		Directory dir = new MMapDirectory(Paths.get(args[0]));
+		if(!DirectoryReader.indexExists(dir))
+		{
+			System.out.println("Creating synthetic index...");
+			createIndex(dir, analyzer, 40000);
+		}
+
+		MultiFieldQueryParser parser = new MultiFieldQueryParser(
+				new String[]{"Title", "AudioFilename", "Artist", "Tags"}, analyzer);
+		parser.setAllowLeadingWildcard(true);
+		Query[] parsed = new Query[QUERIES.length];
+		for(int i = 0; i < QUERIES.length; i++)
+		{
+			parsed[i] = parser.parse("*" + QUERIES[i] + "*");
+		}
+
+		// Warm up both paths
+		runPerQueryReader(dir, parsed, queries);
+		SearcherManager manager = new SearcherManager(dir, null);
+		runSearcherManager(manager, parsed, queries);
+
+		long perQueryReader = runPerQueryReader(dir, parsed, queries);
+		long shared = runSearcherManager(manager, parsed, queries);
+		manager.close();
+
+		report("New reader per query", perQueryReader, queries);
+		report("SearcherManager", shared, queries);
+	}
+
+	private static long runPerQueryReader(Directory dir, Query[] queries, int count) throws IOException
+	{
+		long start = System.nanoTime();
+		for(int i = 0; i < count; i++)
+		{
+			// Closed here, unlike MusicIndex which leaked the reader
+			DirectoryReader reader = DirectoryReader.open(dir);
+			new IndexSearcher(reader).search(queries[i % queries.length], 50);
+			reader.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runSearcherManager(SearcherManager manager, Query[] queries, int count) throws IOException
+	{
+		long start = System.nanoTime();
+		for(int i = 0; i < count; i++)
+		{
+			IndexSearcher searcher = manager.acquire();
+			try
+			{
+				searcher.search(queries[i % queries.length], 50);
+			}
+			finally
+			{
+				manager.release(searcher);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, long nanos, int queries)
+	{
+		System.out.println(String.format("%-22s %8d ms total, %8.1f us per query", name, nanos / 1000000, nanos / 1000.0 / queries));
+	}
+
+	private static void createIndex(Directory dir, Analyzer analyzer, int musics) throws IOException
+	{
+		String[] words = new String[] { "love", "night", "remix", "star", "dream", "fire", "heart", "tv", "size", "kawaii" };
+		IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer));
+		for(int i = 0; i < musics; i++)
+		{
+			Document doc = new Document();
+			doc.add(new StringField("Id", Integer.toString(i), Field.Store.YES));
+			doc.add(new TextField("Title", words[i % words.length] + " " + words[(i / 7) % words.length] + " " + i, Field.Store.YES));
+			doc.add(new TextField("Artist", "artist" + (i % 997), Field.Store.YES));
+			doc.add(new TextField("AudioFilename", "audio" + i + ".mp3", Field.Store.YES));
+			doc.add(new TextField("Tags", words[(i / 3) % words.length] + " tag" + (i % 101), Field.Store.YES));
+			writer.addDocument(doc);
+		}
+		writer.close();
+	}
+}
@@ -0,0 +1,168 @@
+package com.vunyunt.omp.media.audio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vunyunt.omp.Callback;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.media.MediaPlayer;
+
+/**
+ * Drives the volume ramps of all media players from a single pulse.
+ *
+ * Ramps are advanced by an {@link AnimationTimer} on each JavaFX pulse, which only
+ * runs while there are ramps, so no thread is created per fade. A player has at most
+ * one ramp: starting another fade of the same player replaces it, and the callback of
+ * the replaced ramp is dropped.
+ *
+ * Not thread safe, only used from the JavaFX thread. Completion callbacks are called
+ * on the JavaFX thread.
+ *
+ * @author vun
+ *
+ */
+public class AudioFader
+{
+	/**
+	 * A running volume ramp of a player
+	 */
+	private static class Ramp
+	{
+		private double mFrom;
+		private double mTo;
+		private long mStartNanos;
+		private long mDurationNanos;
+		private Callback mCompleted;
+	}
+
+	private FadeCurve mCurve;
+	private Map<MediaPlayer, Ramp> mRamps = new HashMap<>();
+	private boolean mRunning = false;
+
+	private AnimationTimer mPulse = new AnimationTimer()
+	{
+		@Override
+		public void handle(long now)
+		{
+			advance(System.nanoTime());
+		}
+	};
+
+	/**
+	 * @param curve Shape of the ramps, LINEAR if null
+	 */
+	public AudioFader(FadeCurve curve)
+	{
+		mCurve = curve != null ? curve : FadeCurve.LINEAR;
+	}
+
+	/**
+	 * Ramps the volume of a player from its current volume
+	 *
+	 * @param player			Player to fade
+	 * @param to				Volume at the end of the fade
+	 * @param durationMillis	Duration of the fade in milliseconds
+	 * @param completed			Called once the fade is complete, may be null
+	 */
+	public void fade(MediaPlayer player, double to, long durationMillis, Callback completed)
+	{
+		fade(player, player.getVolume(), to, durationMillis, completed);
+	}
+
+	/**
+	 * Ramps the volume of a player, replacing its running ramp if any
+	 *
+	 * @param player			Player to fade
+	 * @param from				Volume at the start of the fade
+	 * @param to				Volume at the end of the fade
+	 * @param durationMillis	Duration of the fade in milliseconds
+	 * @param completed			Called once the fade is complete, may be null
+	 */
+	public void fade(MediaPlayer player, double from, double to, long durationMillis, Callback completed)
+	{
+		Ramp ramp = new Ramp();
+		ramp.mFrom = from;
+		ramp.mTo = to;
+		ramp.mStartNanos = System.nanoTime();
+		ramp.mDurationNanos = Math.max(1, durationMillis) * 1000000;
+		ramp.mCompleted = completed;
+
+		player.setVolume(from);
+		mRamps.put(player, ramp);
+		if(!mRunning)
+		{
+			mRunning = true;
+			mPulse.start();
+		}
+	}
+
+	/**
+	 * Stops the ramp of a player where it is, without calling its callback
+	 */
+	public void cancel(MediaPlayer player)
+	{
+		mRamps.remove(player);
+	}
+
+	/**
+	 * Cancels the ramp of a player and disposes the player, releasing its decoder
+	 */
+	public void dispose(MediaPlayer player)
+	{
+		cancel(player);
+		player.dispose();
+	}
+
+	/**
+	 * Checks if a player has a running ramp
+	 */
+	public boolean isFading(MediaPlayer player)
+	{
+		return mRamps.containsKey(player);
+	}
+
+	/**
+	 * Sets the volume of every ramp at the given time, and completes the finished ones
+	 */
+	private void advance(long nowNanos)
+	{
+		List<Ramp> completed = null;
+		List<MediaPlayer> players = new ArrayList<>(mRamps.keySet());
+		for (MediaPlayer player : players)
+		{
+			Ramp ramp = mRamps.get(player);
+			double progress = (double) (nowNanos - ramp.mStartNanos) / ramp.mDurationNanos;
+			player.setVolume(mCurve.volume(ramp.mFrom, ramp.mTo, progress));
+			if(progress >= 1)
+			{
+				mRamps.remove(player);
+				if(completed == null)
+				{
+					completed = new ArrayList<>();
+				}
+				completed.add(ramp);
+			}
+		}
+
+		if(mRamps.isEmpty())
+		{
+			mRunning = false;
+			mPulse.stop();
+		}
+
+		// Called last, as callbacks may start new ramps
+		if(completed != null)
+		{
+			for (Ramp ramp : completed)
+			{
+				if(ramp.mCompleted != null)
+				{
+					ramp.mCompleted.call();
+				}
+			}
+		}
+	}
+}
@@ -1,33 +1,100 @@
 package com.vunyunt.omp.media.audio;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
 import com.vunyunt.omp.Callback;
 import com.vunyunt.omp.persistence.PersistenceManager;
 import com.vunyunt.omp.persistence.library.Music;
 
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
 import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
 import javafx.util.Duration;
 
 public class AudioPlayer
 {
+	private static final Logger LOGGER = Logger.getLogger(AudioPlayer.class);
+
 	private static final int FADE_MILLIS = 500;
 
+	/**
+	 * Distance to the seek target at which the player is considered to have reached it
+	 */
+	private static final double SEEK_TOLERANCE_MILLIS = 250;
+
+	/**
+	 * Time before the end of a music within which the start of the pre-rolled next music
+	 * is scheduled. Above the interval of the time updates of a player, so it is not missed.
+	 */
+	private static final double HANDOVER_WINDOW_MILLIS = 300;
+
+	/**
+	 * Time before the end of a music at which the pre-rolled next music is played, to cover
+	 * the time a paused player takes to output audio. The switch is timed from the
+	 * interpolated clock, so it is close to gapless but not sample accurate: a few
+	 * milliseconds of silence or overlap remain between the musics.
+	 */
+	private static final double HANDOVER_LEAD_MILLIS = 30;
+
 	private PersistenceManager mPersistenceManager = PersistenceManager.getInstance();
 
 	private MediaPlayer mMediaPlayer;
-	private MediaPlayer mBackPlayer;
 	private Music mCurrentlyPlaying;
 
+	/**
+	 * Player of the next music of the queue, created and pre-rolled while the current
+	 * music plays so that it starts without loading
+	 */
+	private MediaPlayer mBackPlayer;
+	private Music mBackMusic;
+
+	/**
+	 * Starts the back player at the end of the current music, null if not scheduled
+	 */
+	private PauseTransition mHandover;
+
+	private PlayQueue mQueue = new PlayQueue();
+
+	/**
+	 * Supplies the media of the musics played, null to open them on the spot
+	 */
+	private Function<Music, Media> mMediaProvider;
+
+	/**
+	 * Time playing was requested at, until audio is heard. Negative if none.
+	 */
+	private long mPlayRequestTime = -1;
+
+	/**
+	 * Music playing, changed when the queue moves to the next music
+	 */
+	private ReadOnlyObjectWrapper<Music> mPlaying = new ReadOnlyObjectWrapper<>();
+
 	private int mFadeMillis = FADE_MILLIS;
 
+	/**
+	 * Drives the volume ramps of both players
+	 */
+	private AudioFader mFader;
+
+	/**
+	 * Interpolated time of the current player, for visualizations
+	 */
+	private PlaybackClock mClock = new PlaybackClock();
+
 	/**
 	 * Duration of the music, in milliseconds
 	 */
@@ -43,6 +110,8 @@ public class AudioPlayer
 	{
 		mPlaybackProgress = new SimpleDoubleProperty();
 		mLength = new SimpleDoubleProperty();
+		mFadeMillis = mPersistenceManager.getAppConfig().fadeMillis;
+		mFader = new AudioFader(mPersistenceManager.getAppConfig().fadeCurve);
 
 		mPlaybackProgressListener = new ChangeListener<Duration>()
 		{
@@ -50,6 +119,14 @@ public class AudioPlayer
 			public void changed(ObservableValue<? extends Duration> observable, Duration oldValue, Duration newValue)
 			{
 				mPlaybackProgress.set(newValue.toMillis());
+				scheduleHandover();
+				if(mSeekTarget >= 0 && Math.abs(newValue.toMillis() - mSeekTarget) < SEEK_TOLERANCE_MILLIS)
+				{
+					LOGGER.debug("Seeked to " + (long) mSeekTarget + "ms in " + (System.nanoTime() - mSeekRequestTime) / 1000000
+							+ "ms, " + mSeekRequests + " requests coalesced");
+					mSeekTarget = -1;
+					mSeekRequests = 0;
+				}
 			}
 		};
 	}
@@ -59,163 +136,418 @@ public class AudioPlayer
 	 */
 	public void play(Music music)
 	{
+		if(mMediaPlayer != null && mCurrentlyPlaying == music)
+		{
+			playAndFadeIn(mMediaPlayer, mFadeMillis);
+			return;
+		}
+
+		mPlayRequestTime = System.nanoTime();
+		start(music, true);
+	}
+
+	/**
+	 * Plays the next music of the queue, stops if the queue ends
+	 */
+	public void next()
+	{
+		Music next = mQueue.next();
+		if(next == null)
+		{
+			stop();
+			return;
+		}
+
+		mPlayRequestTime = System.nanoTime();
+		start(next, true);
+	}
+
+	/**
+	 * {@link AudioPlayer#mMediaProvider}
+	 */
+	public void setMediaProvider(Function<Music, Media> provider)
+	{
+		mMediaProvider = provider;
+	}
+
+	/**
+	 * Replaces the queue played after the current music
+	 *
+	 * @param musics	Musics to play
+	 * @param current	Music the queue continues from
+	 */
+	public void setQueue(List<Music> musics, Music current)
+	{
+		mQueue.setMusics(musics, current);
+		prepareNextIfReady();
+	}
+
+	/**
+	 * Adds musics at the end of the queue
+	 */
+	public void extendQueue(List<? extends Music> musics)
+	{
+		mQueue.addMusics(musics);
+		prepareNextIfReady();
+	}
+
+	public void setPlayMode(PlayQueue.Mode mode)
+	{
+		mQueue.setMode(mode);
+		prepareNextIfReady();
+	}
+
+	public PlayQueue.Mode getPlayMode()
+	{
+		return mQueue.getMode();
+	}
+
+	/**
+	 * Replaces the current player by one playing a music
+	 *
+	 * @param fadeOut Crossfades from the current player, otherwise disposes it at once and plays at full volume
+	 */
+	private void start(Music music, boolean fadeOut)
+	{
+		if(mHandover != null)
+		{
+			mHandover.stop();
+			mHandover = null;
+		}
+
 		if(mMediaPlayer != null)
 		{
-			if(mCurrentlyPlaying == music)
+			mMediaPlayer.currentTimeProperty().removeListener(mPlaybackProgressListener);
+			mMediaPlayer.setOnEndOfMedia(null);
+			if(fadeOut)
 			{
-				playAndFadeIn(mMediaPlayer, mFadeMillis);
-				return;
+				fadeOutAndDispose(mMediaPlayer, mFadeMillis);
 			}
 			else
 			{
-				mMediaPlayer.currentTimeProperty().removeListener(mPlaybackProgressListener);
-				fadeOutAndStop(mMediaPlayer, mFadeMillis);
+				mFader.dispose(mMediaPlayer);
 			}
 		}
 
-		mBackPlayer = createPlayer(music);
-		mBackPlayer.play();
+		// Seeks requested for the previous music are dropped
+		mPendingSeek = -1;
+		mSeekTarget = -1;
+		mSeekRequests = 0;
+
+		MediaPlayer player;
+		boolean preRolled = mBackPlayer != null && mBackMusic == music;
+		if(preRolled)
+		{
+			LOGGER.debug("Playing pre-rolled " + music.getName() + ", " + mBackPlayer.getStatus());
+			player = mBackPlayer;
+			mBackPlayer = null;
+			mBackMusic = null;
+		}
+		else
+		{
+			player = createPlayer(music);
+		}
+
+		// Only playing requested by the user is measured, not moving on at the end of a music
+		long requestTime = mPlayRequestTime;
+		mPlayRequestTime = -1;
+		if(requestTime >= 0)
+		{
+			player.setOnPlaying(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					player.setOnPlaying(null);
+					LOGGER.info("Time to audio for " + music.getName() + ": " + (System.nanoTime() - requestTime) / 1000000
+							+ "ms" + (preRolled ? ", pre-rolled" : ""));
+				}
+			});
+		}
+
+		mMediaPlayer = player;
 		mCurrentlyPlaying = music;
-		swapPlayers();
-		bindProgress(mMediaPlayer);
+		if(fadeOut)
+		{
+			// Fades in over the fade out of the previous player, crossfading along the fade curve
+			playAndFadeIn(player, mFadeMillis);
+		}
+		else
+		{
+			player.setVolume(1);
+			player.play();
+		}
+		mClock.attach(player);
+		bindProgress(player);
+		mPlaying.set(music);
 	}
 
-	private void bindProgress(MediaPlayer player)
+	/**
+	 * Prepares the next music once the current player is ready, so that it does not
+	 * compete with the current music still loading. Done when it gets ready otherwise.
+	 */
+	private void prepareNextIfReady()
 	{
-		player.currentTimeProperty().addListener(mPlaybackProgressListener);
+		if(mMediaPlayer != null && mMediaPlayer.getStatus() != MediaPlayer.Status.UNKNOWN)
+		{
+			prepareNext();
+		}
+	}
+
+	/**
+	 * Creates the player of the next music of the queue in the back player, and pauses
+	 * it once ready so that its media is opened and buffered ahead
+	 */
+	private void prepareNext()
+	{
+		Music next = mQueue.peekNext();
+		if(next == mBackMusic)
+		{
+			return;
+		}
+
+		if(mBackPlayer != null)
+		{
+			mFader.dispose(mBackPlayer);
+			mBackPlayer = null;
+			mBackMusic = null;
+		}
+
+		// Repeating the current music rewinds its player instead
+		if(next == null || next == mCurrentlyPlaying)
+		{
+			return;
+		}
+
+		MediaPlayer player = createPlayer(next);
 		player.setOnReady(new Runnable()
 		{
 			@Override
 			public void run()
 			{
-				mLength.set(mMediaPlayer.getMedia().getDuration().toMillis());
-				mMediaPlayer.currentTimeProperty().addListener(mPlaybackProgressListener);
+				if(player == mBackPlayer)
+				{
+					player.pause();
+				}
 			}
 		});
+		mBackPlayer = player;
+		mBackMusic = next;
 	}
 
-	private MediaPlayer createPlayer(Music music)
+	/**
+	 * Schedules the start of the pre-rolled next music {@link AudioPlayer#HANDOVER_LEAD_MILLIS}
+	 * before the end of the current one, once it is close to its end
+	 */
+	private void scheduleHandover()
 	{
-		File musicFile = music.getAudioFile(mPersistenceManager);
-		MediaPlayer player = new MediaPlayer(new Media(musicFile.toURI().toASCIIString()));
-		mPlayerFaderTimer.put(player, new Timer());
-		return player;
+		if(mHandover != null || mBackPlayer == null || mQueue.peekNext() != mBackMusic)
+		{
+			return;
+		}
+
+		MediaPlayer.Status status = mBackPlayer.getStatus();
+		double remaining = getRemainingMillis();
+		if((status != MediaPlayer.Status.READY && status != MediaPlayer.Status.PAUSED)
+				|| remaining < 0 || remaining > HANDOVER_WINDOW_MILLIS)
+		{
+			return;
+		}
+
+		PauseTransition handover = new PauseTransition(Duration.millis(Math.max(0, remaining - HANDOVER_LEAD_MILLIS)));
+		handover.setOnFinished(new EventHandler<ActionEvent>()
+		{
+			@Override
+			public void handle(ActionEvent event)
+			{
+				if(handover != mHandover)
+				{
+					return;
+				}
+				mHandover = null;
+
+				// Paused or seeked meanwhile, scheduled again when close to the end
+				double left = getRemainingMillis();
+				if(left >= 0 && left <= 2 * HANDOVER_LEAD_MILLIS
+						&& mBackPlayer != null && mQueue.peekNext() == mBackMusic)
+				{
+					handOver();
+				}
+			}
+		});
+		mHandover = handover;
+		handover.play();
 	}
 
-	private void swapPlayers()
+	/**
+	 * Plays the next music in the back player, while the current player plays its last
+	 * milliseconds and is disposed when it ends
+	 */
+	private void handOver()
 	{
-		MediaPlayer mp = mMediaPlayer;
-		mMediaPlayer = mBackPlayer;
-		mBackPlayer = mp;
+		MediaPlayer previous = mMediaPlayer;
+		previous.currentTimeProperty().removeListener(mPlaybackProgressListener);
+		previous.setOnPaused(null);
+		previous.setOnEndOfMedia(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				mFader.dispose(previous);
+			}
+		});
+
+		mMediaPlayer = null;
+		start(mQueue.next(), false);
 	}
 
-	private void playAndFadeIn(MediaPlayer player, int timeMilli)
+	/**
+	 * Time until the current music ends at its current rate, from the interpolated clock
+	 *
+	 * @return The time in milliseconds, -1 if not playing or the duration is unknown
+	 */
+	private double getRemainingMillis()
 	{
-		player.setVolume(0);
-		player.play();
-		fadeIn(player, timeMilli, null);
+		if(mMediaPlayer == null || mMediaPlayer.getStatus() != MediaPlayer.Status.PLAYING || mMediaPlayer.getRate() <= 0)
+		{
+			return -1;
+		}
+
+		Duration total = mMediaPlayer.getTotalDuration();
+		if(total == null || total.isUnknown() || total.isIndefinite())
+		{
+			return -1;
+		}
+
+		return Math.max(0, total.toMillis() - mClock.getTimeMillis()) / mMediaPlayer.getRate();
 	}
 
-	private void fadeOutAndStop(MediaPlayer player, int timeMilli)
+	/**
+	 * Moves to the next music of the queue when the current one ends, without fading.
+	 * Only reached if the next music is not pre-rolled in time to be handed over to.
+	 */
+	private void onEndOfMedia()
 	{
-		this.fadeOutAndStop(player, timeMilli, null);
+		Music next = mQueue.next();
+		if(next == null)
+		{
+			mMediaPlayer.stop();
+		}
+		else if(next == mCurrentlyPlaying)
+		{
+			mClock.jump(0, System.nanoTime());
+			mMediaPlayer.seek(Duration.ZERO);
+			mMediaPlayer.play();
+		}
+		else
+		{
+			start(next, false);
+		}
 	}
 
-	private void fadeOutAndStop(MediaPlayer player, int timeMilli, Callback c)
+	private void bindProgress(MediaPlayer player)
 	{
-		fadeOut(player, timeMilli, new Callback()
+		player.currentTimeProperty().addListener(mPlaybackProgressListener);
+
+		Runnable onReady = new Runnable()
 		{
 			@Override
-			public void call()
+			public void run()
 			{
-				player.stop();
-				if(c != null) c.call();
+				if(player != mMediaPlayer)
+				{
+					return;
+				}
+
+				mLength.set(player.getMedia().getDuration().toMillis());
+				applySeek();
+				prepareNext();
+			}
+		};
+
+		// A pre-rolled player is ready already
+		if(player.getStatus() == MediaPlayer.Status.UNKNOWN)
+		{
+			player.setOnReady(onReady);
+		}
+		else
+		{
+			onReady.run();
+		}
+
+		player.setOnEndOfMedia(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				onEndOfMedia();
 			}
 		});
-	}
 
-	private void fadeOutAndClear(MediaPlayer player, int timeMilli)
-	{
-		this.fadeOutAndStop(player, timeMilli, new Callback()
+		// A stopped player is paused before seeking, see applySeek()
+		player.setOnPaused(new Runnable()
 		{
 			@Override
-			public void call()
+			public void run()
 			{
-				if(mMediaPlayer == player) mMediaPlayer = null;
-				mBackPlayer = null;
+				applySeek();
 			}
 		});
 	}
 
-	/**
-	 * Each media player is bound to one and only one timer for fading
-	 */
-	private HashMap<MediaPlayer, Timer> mPlayerFaderTimer = new HashMap<>();
+	private MediaPlayer createPlayer(Music music)
+	{
+		if(mMediaProvider != null)
+		{
+			return new MediaPlayer(mMediaProvider.apply(music));
+		}
 
-	/**
-	 * Fades a player out.
-	 *
-	 * @param player	MediaPlayer to fade out
-	 * @param timeMilli Duration of the fade in milliseconds
-	 * @param completed Callback to call once the fading is complete
-	 */
-	private void fadeOut(MediaPlayer player, int timeMilli, Callback completed)
+		File musicFile = music.getAudioFile(mPersistenceManager);
+		return new MediaPlayer(new Media(musicFile.toURI().toASCIIString()));
+	}
+
+	private void playAndFadeIn(MediaPlayer player, int timeMilli)
+	{
+		player.play();
+		mFader.fade(player, 0, 1, timeMilli, null);
+	}
+
+	private void fadeOutAndStop(MediaPlayer player, int timeMilli)
 	{
-		long startTime = System.nanoTime();
-		mPlayerFaderTimer.get(player).cancel();
-		Timer t = new Timer();
-		mPlayerFaderTimer.put(player, t);
-		t.scheduleAtFixedRate(new TimerTask()
+		this.fadeOutAndStop(player, timeMilli, null);
+	}
+
+	private void fadeOutAndStop(MediaPlayer player, int timeMilli, Callback c)
+	{
+		mFader.fade(player, 0, timeMilli, new Callback()
 		{
 			@Override
-			public void run()
+			public void call()
 			{
-				long currentTime = System.nanoTime();
-				double elapsedTime = (currentTime - startTime) / 1000000;
-				player.setVolume(Math.max(1 - (double)(elapsedTime / timeMilli), 0));
-				if(elapsedTime > timeMilli)
-				{
-					if(completed != null)
-					{
-						completed.call();
-					}
-					t.cancel();
-				}
+				player.stop();
+				if(c != null) c.call();
 			}
-		}, 0, 50);
+		});
 	}
 
 	/**
-	 * Fades a player in.
-	 *
-	 * @param player	MediaPlayer to fade in
-	 * @param timeMilli Duration of the fade in milliseconds
-	 * @param completed Callback to call once the fading is complete
+	 * Fades a player out, then disposes it unless it is played again meanwhile
 	 */
-	private void fadeIn(MediaPlayer player, int timeMilli, Callback completed)
+	private void fadeOutAndDispose(MediaPlayer player, int timeMilli)
 	{
-		long startTime = System.nanoTime();
-		mPlayerFaderTimer.get(player).cancel();
-		Timer t = new Timer();
-		mPlayerFaderTimer.put(player, t);
-		t.scheduleAtFixedRate(new TimerTask()
+		this.fadeOutAndStop(player, timeMilli, new Callback()
 		{
 			@Override
-			public void run()
+			public void call()
 			{
-				long currentTime = System.nanoTime();
-				double elapsedTime = (currentTime - startTime) / 1000000;
-				player.setVolume(Math.max((double)(elapsedTime / timeMilli), 0));
-				if(elapsedTime > timeMilli)
+				if(player == mMediaPlayer)
 				{
-					if(completed != null)
-					{
-						completed.call();
-					}
-					t.cancel();
+					return;
 				}
+
+				mFader.dispose(player);
 			}
-		}, 0, 50);
+		});
 	}
 
 	public void pause()
@@ -228,40 +560,106 @@ public class AudioPlayer
 
 	public void stop()
 	{
-		this.fadeOutAndStop(mMediaPlayer, mFadeMillis);
+		if(mMediaPlayer != null)
+		{
+			this.fadeOutAndStop(mMediaPlayer, mFadeMillis);
+		}
 	}
 
 	/**
-	 * Locks seeking when not ready
-	 * true = locked.
+	 * Latest seek target not applied yet, in milliseconds. Negative if none.
+	 */
+	private double mPendingSeek = -1;
+
+	/**
+	 * Set while {@link AudioPlayer#applySeek()} is queued on the JavaFX thread
 	 */
-	private boolean mSeeklock = false;
+	private boolean mSeekScheduled = false;
 
+	/**
+	 * Target of the last seek applied, until the player reaches it. Negative if none.
+	 */
+	private double mSeekTarget = -1;
+
+	/**
+	 * Time of the first seek request not reached yet, and amount of requests since
+	 */
+	private long mSeekRequestTime;
+	private int mSeekRequests = 0;
+
+	/**
+	 * Seeks the current player in place.
+	 *
+	 * Requests made before the seek is applied, such as while dragging the progress
+	 * slider, are coalesced: only the latest target is applied, once per run of the
+	 * JavaFX thread. A player not ready yet seeks once it is.
+	 *
+	 * @param milli Target in milliseconds
+	 */
 	public void seek(double milli)
 	{
-		if(!mSeeklock)
+		if(mMediaPlayer == null)
 		{
-			mBackPlayer = createPlayer(mCurrentlyPlaying);
+			return;
+		}
 
-			mMediaPlayer.currentTimeProperty().removeListener(mPlaybackProgressListener);
-			fadeOutAndStop(mMediaPlayer, mFadeMillis);
-			mSeeklock = true;
+		if(mSeekRequests == 0)
+		{
+			mSeekRequestTime = System.nanoTime();
+		}
+		mSeekRequests++;
+		mPendingSeek = milli;
 
-			mBackPlayer.setOnReady(new Runnable()
+		if(!mSeekScheduled)
+		{
+			mSeekScheduled = true;
+			Platform.runLater(new Runnable()
 			{
 				@Override
 				public void run()
 				{
-					mBackPlayer.seek(new Duration(milli));
-					playAndFadeIn(mBackPlayer, mFadeMillis);
-					swapPlayers();
-					bindProgress(mMediaPlayer);
-					mSeeklock = false;
+					mSeekScheduled = false;
+					applySeek();
 				}
 			});
 		}
 	}
 
+	/**
+	 * Applies the pending seek to the current player, if it is able to seek
+	 */
+	private void applySeek()
+	{
+		MediaPlayer player = mMediaPlayer;
+		if(player == null || mPendingSeek < 0)
+		{
+			return;
+		}
+
+		switch(player.getStatus())
+		{
+		case UNKNOWN:
+			// Applied once ready
+			return;
+		case STOPPED:
+			// Seeking has no effect on a stopped player, applied once paused
+			player.pause();
+			return;
+		case HALTED:
+		case DISPOSED:
+			mPendingSeek = -1;
+			mSeekRequests = 0;
+			return;
+		default:
+			break;
+		}
+
+		mSeekTarget = mPendingSeek;
+		mPendingSeek = -1;
+		mClock.jump(mSeekTarget, System.nanoTime());
+		player.seek(Duration.millis(mSeekTarget));
+	}
+
 	/**
 	 * {@link AudioPlayer#mPlaybackProgress}
 	 */
@@ -270,6 +668,22 @@ public class AudioPlayer
 		return mPlaybackProgress;
 	}
 
+	/**
+	 * {@link AudioPlayer#mClock}
+	 */
+	public PlaybackClock getClock()
+	{
+		return mClock;
+	}
+
+	/**
+	 * {@link AudioPlayer#mPlaying}
+	 */
+	public ReadOnlyObjectProperty<Music> getPlayingProperty()
+	{
+		return mPlaying.getReadOnlyProperty();
+	}
+
 	/**
 	 * {@link AudioPlayer#mLength}
 	 */
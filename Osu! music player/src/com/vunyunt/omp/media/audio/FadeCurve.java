@@ -0,0 +1,48 @@
+package com.vunyunt.omp.media.audio;
+
+/**
+ * Shapes of volume ramps
+ *
+ * @author vun
+ *
+ */
+public enum FadeCurve
+{
+	/**
+	 * Volume changes at a constant rate
+	 */
+	LINEAR,
+
+	/**
+	 * Volume follows a quarter sine, so that two players crossfading with opposite
+	 * ramps keep a constant total power instead of dipping in the middle
+	 */
+	EQUAL_POWER;
+
+	/**
+	 * Gets the volume of a ramp at some point of its progress
+	 *
+	 * @param from		Volume at the start of the ramp
+	 * @param to		Volume at the end of the ramp
+	 * @param progress	Progress of the ramp, from 0 to 1
+	 */
+	public double volume(double from, double to, double progress)
+	{
+		double p = Math.max(0, Math.min(1, progress));
+		double shape;
+		if(this == LINEAR)
+		{
+			shape = p;
+		}
+		else if(to >= from)
+		{
+			shape = Math.sin(p * Math.PI / 2);
+		}
+		else
+		{
+			shape = 1 - Math.cos(p * Math.PI / 2);
+		}
+
+		return from + (to - from) * shape;
+	}
+}
@@ -0,0 +1,235 @@
+package com.vunyunt.omp.media.audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.vunyunt.omp.persistence.library.Music;
+
+/**
+ * Order in which musics are played, from the list a music was played from.
+ *
+ * The next music is known ahead with {@link PlayQueue#peekNext()}, so that its player
+ * can be prepared before the current music ends and started just before it ends.
+ *
+ * Not thread safe, only used from the JavaFX thread.
+ *
+ * @author vun
+ *
+ */
+public class PlayQueue
+{
+	public enum Mode
+	{
+		/**
+		 * Plays the list in order, then stops
+		 */
+		SEQUENTIAL("Sequential"),
+
+		/**
+		 * Plays the list in order, over and over
+		 */
+		REPEAT("Repeat all"),
+
+		/**
+		 * Plays the current music over and over
+		 */
+		REPEAT_ONE("Repeat one"),
+
+		/**
+		 * Plays the list in a random order, over and over
+		 */
+		SHUFFLE("Shuffle");
+
+		private String mLabel;
+
+		private Mode(String label)
+		{
+			mLabel = label;
+		}
+
+		@Override
+		public String toString()
+		{
+			return mLabel;
+		}
+	}
+
+	private List<Music> mMusics = new ArrayList<>();
+
+	/**
+	 * Indexes of the musics in the order they are played
+	 */
+	private int[] mOrder = new int[0];
+
+	/**
+	 * Position of the current music in {@link PlayQueue#mOrder}, -1 before the first music
+	 */
+	private int mPosition = -1;
+
+	private Mode mMode = Mode.SEQUENTIAL;
+	private Random mRandom = new Random();
+
+	/**
+	 * Replaces the musics of the queue
+	 *
+	 * @param musics	Musics to play, copied
+	 * @param current	Music playing, which the queue continues from. Plays from the start if not in the list.
+	 */
+	public void setMusics(List<Music> musics, Music current)
+	{
+		mMusics = new ArrayList<>(musics);
+		buildOrder(indexOf(current));
+	}
+
+	/**
+	 * Adds musics at the end of the queue, such as the next page of search results.
+	 * In SHUFFLE mode they are mixed among the musics not played yet.
+	 */
+	public void addMusics(List<? extends Music> musics)
+	{
+		int start = mMusics.size();
+		mMusics.addAll(musics);
+
+		int[] order = Arrays.copyOf(mOrder, mMusics.size());
+		for(int i = start; i < order.length; i++)
+		{
+			order[i] = i;
+			if(mMode == Mode.SHUFFLE)
+			{
+				int j = mPosition + 1 + mRandom.nextInt(i - mPosition);
+				order[i] = order[j];
+				order[j] = i;
+			}
+		}
+		mOrder = order;
+	}
+
+	/**
+	 * Changes the mode, continuing from the current music. Shuffles again in SHUFFLE mode.
+	 */
+	public void setMode(Mode mode)
+	{
+		int current = mPosition >= 0 ? mOrder[mPosition] : -1;
+		mMode = mode;
+		buildOrder(current);
+	}
+
+	public Mode getMode()
+	{
+		return mMode;
+	}
+
+	/**
+	 * Gets the music playing, null before the first music
+	 */
+	public Music getCurrent()
+	{
+		return mPosition >= 0 ? mMusics.get(mOrder[mPosition]) : null;
+	}
+
+	/**
+	 * Gets the music played after the current one, without moving to it
+	 *
+	 * @return The next music, null if the queue ends
+	 */
+	public Music peekNext()
+	{
+		int next = nextPosition();
+		return next >= 0 ? mMusics.get(mOrder[next]) : null;
+	}
+
+	/**
+	 * Moves to the music played after the current one
+	 *
+	 * @return The next music, null if the queue ends
+	 */
+	public Music next()
+	{
+		int next = nextPosition();
+		if(next < 0)
+		{
+			return null;
+		}
+
+		mPosition = next;
+		return mMusics.get(mOrder[next]);
+	}
+
+	private int nextPosition()
+	{
+		if(mOrder.length == 0)
+		{
+			return -1;
+		}
+
+		if(mMode == Mode.REPEAT_ONE && mPosition >= 0)
+		{
+			return mPosition;
+		}
+
+		int next = mPosition + 1;
+		if(next >= mOrder.length)
+		{
+			return mMode == Mode.SEQUENTIAL ? -1 : 0;
+		}
+		return next;
+	}
+
+	/**
+	 * Orders the musics for the current mode
+	 *
+	 * @param current Index of the current music, -1 if none
+	 */
+	private void buildOrder(int current)
+	{
+		mOrder = new int[mMusics.size()];
+		for(int i = 0; i < mOrder.length; i++)
+		{
+			mOrder[i] = i;
+		}
+		mPosition = current;
+
+		if(mMode == Mode.SHUFFLE)
+		{
+			for(int i = mOrder.length - 1; i > 0; i--)
+			{
+				int j = mRandom.nextInt(i + 1);
+				int t = mOrder[i];
+				mOrder[i] = mOrder[j];
+				mOrder[j] = t;
+			}
+
+			// The current music starts the shuffled order
+			if(current >= 0)
+			{
+				for(int i = 0; i < mOrder.length; i++)
+				{
+					if(mOrder[i] == current)
+					{
+						mOrder[i] = mOrder[0];
+						mOrder[0] = current;
+						break;
+					}
+				}
+				mPosition = 0;
+			}
+		}
+	}
+
+	/**
+	 * Finds a music in the list by identity, as the same music may be listed twice as different objects
+	 */
+	private int indexOf(Music music)
+	{
+		for(int i = 0; i < mMusics.size(); i++)
+		{
+			if(mMusics.get(i) == music)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+}
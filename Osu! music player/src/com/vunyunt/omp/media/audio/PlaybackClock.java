@@ -0,0 +1,267 @@
+package com.vunyunt.omp.media.audio;
+
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+
+/**
+ * Playback time of the current player, interpolated between the time updates of the
+ * player so that it advances smoothly on every frame.
+ *
+ * While playing, the time advances with System.nanoTime at the rate of the player.
+ * Every time update of the player is compared to the interpolated time: small errors
+ * are corrected by slightly speeding up or slowing down the clock, so it never jumps;
+ * large errors, such as after a seek, move the clock to the player time at once.
+ * Pausing, stopping and stalling freeze the clock at the player time.
+ *
+ * Sampling allocates nothing, so it can be done on every frame. Not thread safe, only
+ * used from the JavaFX thread.
+ *
+ * @author vun
+ *
+ */
+public class PlaybackClock
+{
+	/**
+	 * Error from which the clock moves to the player time at once instead of slewing
+	 */
+	private static final double SNAP_MILLIS = 150;
+
+	/**
+	 * Time over which an error is slewed out
+	 */
+	private static final double SLEW_MILLIS = 500;
+
+	/**
+	 * Maximum speed-up or slow-down of the clock while slewing
+	 */
+	private static final double MAX_SLEW = 0.05;
+
+	/**
+	 * Time after a jump during which player times far from the jump target are ignored,
+	 * as the player reports its previous position until the seek is done
+	 */
+	private static final long JUMP_SETTLE_NANOS = 500 * 1000000L;
+
+	/**
+	 * Media time at the anchor, in milliseconds, and System.nanoTime of the anchor.
+	 * The time is extrapolated from the anchor.
+	 */
+	private double mAnchorMillis = 0;
+	private long mAnchorNanos = System.nanoTime();
+
+	private boolean mRunning = false;
+	private double mRate = 1;
+
+	/**
+	 * Factor applied to the rate while an error is slewed out
+	 */
+	private double mSlew = 1;
+
+	/**
+	 * Duration of the media in milliseconds, the clock does not run past it. Negative if unknown.
+	 */
+	private double mEndMillis = -1;
+
+	private long mJumpNanos = 0;
+	private double mJumpMillis = -1;
+
+	private MediaPlayer mPlayer;
+	private ChangeListener<Duration> mTimeListener;
+	private ChangeListener<MediaPlayer.Status> mStatusListener;
+	private ChangeListener<Number> mRateListener;
+
+	public PlaybackClock()
+	{
+		mTimeListener = new ChangeListener<Duration>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends Duration> observable, Duration oldValue, Duration newValue)
+			{
+				update(newValue.toMillis(), System.nanoTime());
+			}
+		};
+
+		mStatusListener = new ChangeListener<MediaPlayer.Status>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends MediaPlayer.Status> observable, MediaPlayer.Status oldValue,
+					MediaPlayer.Status newValue)
+			{
+				syncStatus();
+			}
+		};
+
+		mRateListener = new ChangeListener<Number>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue)
+			{
+				setRate(newValue.doubleValue(), System.nanoTime());
+			}
+		};
+	}
+
+	/**
+	 * Follows a player in place of the current one
+	 *
+	 * @param player Player to follow, null to stop following any
+	 */
+	public void attach(MediaPlayer player)
+	{
+		if(mPlayer != null)
+		{
+			mPlayer.currentTimeProperty().removeListener(mTimeListener);
+			mPlayer.statusProperty().removeListener(mStatusListener);
+			mPlayer.rateProperty().removeListener(mRateListener);
+		}
+
+		mPlayer = player;
+		mJumpMillis = -1;
+		mEndMillis = -1;
+		if(player == null)
+		{
+			setRunning(false, mAnchorMillis, System.nanoTime());
+			return;
+		}
+
+		player.currentTimeProperty().addListener(mTimeListener);
+		player.statusProperty().addListener(mStatusListener);
+		player.rateProperty().addListener(mRateListener);
+
+		long now = System.nanoTime();
+		mAnchorMillis = player.getCurrentTime().toMillis();
+		mAnchorNanos = now;
+		mRate = player.getRate();
+		mSlew = 1;
+		syncStatus();
+	}
+
+	/**
+	 * Freezes or runs the clock as the status of the player requires
+	 */
+	private void syncStatus()
+	{
+		Duration total = mPlayer.getTotalDuration();
+		mEndMillis = total != null && !total.isUnknown() && !total.isIndefinite() ? total.toMillis() : -1;
+
+		setRunning(mPlayer.getStatus() == MediaPlayer.Status.PLAYING, mPlayer.getCurrentTime().toMillis(), System.nanoTime());
+	}
+
+	/**
+	 * Gets the interpolated media time
+	 *
+	 * @param nanoTime Time to sample at, from System.nanoTime, such as the time of an animation frame
+	 * @return Media time in milliseconds
+	 */
+	public double getTimeMillis(long nanoTime)
+	{
+		double time = mAnchorMillis;
+		if(mRunning && nanoTime > mAnchorNanos)
+		{
+			time += (nanoTime - mAnchorNanos) / 1000000.0 * mRate * mSlew;
+		}
+
+		if(mEndMillis >= 0 && time > mEndMillis)
+		{
+			return mEndMillis;
+		}
+		return time;
+	}
+
+	/**
+	 * Gets the interpolated media time now, in milliseconds
+	 */
+	public double getTimeMillis()
+	{
+		return getTimeMillis(System.nanoTime());
+	}
+
+	public boolean isRunning()
+	{
+		return mRunning;
+	}
+
+	/**
+	 * Corrects the clock with a time reported by the player
+	 *
+	 * @param mediaMillis	Media time reported
+	 * @param nanoTime		System.nanoTime at which it is reported
+	 */
+	public void update(double mediaMillis, long nanoTime)
+	{
+		if(mJumpMillis >= 0)
+		{
+			if(Math.abs(mediaMillis - mJumpMillis) > SNAP_MILLIS && nanoTime - mJumpNanos < JUMP_SETTLE_NANOS)
+			{
+				// Still reporting the position before the jump
+				return;
+			}
+			mJumpMillis = -1;
+		}
+
+		if(!mRunning)
+		{
+			mAnchorMillis = mediaMillis;
+			mAnchorNanos = nanoTime;
+			return;
+		}
+
+		double predicted = getTimeMillis(nanoTime);
+		double error = mediaMillis - predicted;
+		if(Math.abs(error) > SNAP_MILLIS)
+		{
+			mAnchorMillis = mediaMillis;
+			mSlew = 1;
+		}
+		else
+		{
+			// Continues from the interpolated time, running faster or slower until the error is made up
+			mAnchorMillis = predicted;
+			mSlew = 1 + Math.max(-MAX_SLEW, Math.min(MAX_SLEW, error / SLEW_MILLIS));
+		}
+		mAnchorNanos = nanoTime;
+	}
+
+	/**
+	 * Runs or freezes the clock
+	 *
+	 * @param running		Whether the media plays
+	 * @param mediaMillis	Media time at which it starts or stops playing
+	 * @param nanoTime		System.nanoTime at which it starts or stops playing
+	 */
+	public void setRunning(boolean running, double mediaMillis, long nanoTime)
+	{
+		// Keeps the time reached while playing, the player reports a coarser time
+		if(!(running && mRunning))
+		{
+			mAnchorMillis = mJumpMillis >= 0 ? mJumpMillis : mediaMillis;
+			mAnchorNanos = nanoTime;
+			mSlew = 1;
+		}
+		mRunning = running;
+	}
+
+	/**
+	 * Changes the rate the clock runs at, from now on
+	 */
+	public void setRate(double rate, long nanoTime)
+	{
+		mAnchorMillis = getTimeMillis(nanoTime);
+		mAnchorNanos = nanoTime;
+		mRate = rate;
+	}
+
+	/**
+	 * Moves the clock to a seek target at once, without waiting for the player to report it
+	 */
+	public void jump(double mediaMillis, long nanoTime)
+	{
+		mAnchorMillis = mediaMillis;
+		mAnchorNanos = nanoTime;
+		mSlew = 1;
+		mJumpMillis = mediaMillis;
+		mJumpNanos = nanoTime;
+	}
+}
@@ -10,6 +10,7 @@ import org.apache.log4j.Logger;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.vunyunt.omp.media.audio.FadeCurve;
 
 public class AppConfig
 {
@@ -17,6 +18,9 @@ public class AppConfig
 
 	public transient static final String APP_CONFIG_FILE_PATH = "./AppConfig.json";
 
+	public transient static final String SEARCH_BACKEND_LUCENE = "lucene";
+	public transient static final String SEARCH_BACKEND_MEMORY = "memory";
+
 	public static AppConfig fromJson(Gson gson, String json)
 	{
 		return gson.fromJson(json, AppConfig.class);
@@ -32,4 +36,83 @@ public class AppConfig
 	public double windowWidth = 1280;
 	public double windowHeight = 720;
 	public String osuPath = "";
+
+	/**
+	 * Amount of threads used to scan the Songs folder. 0 uses one thread per processor,
+	 * 1 scans serially.
+	 */
+	public int scanParallelism = 0;
+
+	/**
+	 * Imports mapsets added, changed or removed in the Songs folder while running
+	 */
+	public boolean watchSongsFolder = true;
+
+	/**
+	 * Time a mapset folder needs to be quiet before its changes are imported
+	 */
+	public long watchDebounceMillis = 1000;
+
+	/**
+	 * Searches with n-gram fields instead of wildcard queries.
+	 * Changing it reindexes all musics on the next start.
+	 */
+	public boolean ngramSearch = true;
+
+	/**
+	 * Time the search text needs to be unchanged before it is searched
+	 */
+	public long searchDebounceMillis = 150;
+
+	/**
+	 * Amount of search results fetched at once. More are fetched while scrolling.
+	 */
+	public int searchPageSize = 100;
+
+	/**
+	 * Amount of recent searches whose first page of results is kept in memory
+	 */
+	public int searchCacheSize = 256;
+
+	/**
+	 * Memory used to buffer indexed musics before they are flushed to disk, in MB
+	 */
+	public double indexRamBufferMB = 32;
+
+	/**
+	 * Amount of changes after which an import commits the index
+	 */
+	public int indexCommitEveryChanges = 5000;
+
+	/**
+	 * Time after which an import commits the index if there are uncommitted changes
+	 */
+	public long indexCommitIntervalSeconds = 30;
+
+	/**
+	 * Maximum amount of values listed for a facet dimension, most frequent first
+	 */
+	public int facetLimit = 5000;
+
+	/**
+	 * Engine answering searches. SEARCH_BACKEND_LUCENE searches the index on disk.
+	 * SEARCH_BACKEND_MEMORY builds an in-memory index after the import, which answers
+	 * faster but holds the searched text of every music in memory.
+	 */
+	public String searchBackend = SEARCH_BACKEND_LUCENE;
+
+	/**
+	 * Duration of the fades when playing, stopping and seeking, in milliseconds
+	 */
+	public int fadeMillis = 500;
+
+	/**
+	 * Shape of the fades
+	 */
+	public FadeCurve fadeCurve = FadeCurve.EQUAL_POWER;
+
+	/**
+	 * Memory the media and storyboards prepared ahead of playback may use, in megabytes
+	 */
+	public int warmupCacheMB = 128;
 }
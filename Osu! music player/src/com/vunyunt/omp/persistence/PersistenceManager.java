@@ -135,6 +135,34 @@ public class PersistenceManager
 		}
 	}
 
+	/**
+	 * Switches the music library to another Osu! path without restarting.
+	 * The index is cleared and rebuilt from the new Songs folder in the background.
+	 *
+	 * @param osuPath Installation folder of Osu!
+	 * @throws IllegalArgumentException If the path does not contain a Songs folder
+	 * @throws IOException
+	 */
+	public void changeOsuPath(File osuPath) throws IllegalArgumentException, IOException
+	{
+		if(!OsuMusicLibrary.isOsuPath(osuPath.getAbsolutePath()))
+		{
+			throw new IllegalArgumentException("Unable to find Songs folder in the given Osu! path.");
+		}
+
+		LOGGER.info("Changing Osu! path to " + osuPath.getAbsolutePath());
+		if(mMusicLibrary != null)
+		{
+			mMusicLibrary.close();
+		}
+
+		mAppConfig.osuPath = osuPath.getAbsolutePath();
+		mAppConfig.clearLucene = true;
+		saveConfig();
+
+		mMusicLibrary = new OsuMusicLibrary(mAppConfig.osuPath);
+	}
+
 	/**
 	 * {@link PersistenceManager#mMusicLibrary}
 	 */
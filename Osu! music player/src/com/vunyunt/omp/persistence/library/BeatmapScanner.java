@@ -0,0 +1,284 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Scans the Songs folder of Osu! for beatmaps and reads them into Music objects.
+ *
+ * Mapset folders are scanned in ranges, in parallel on a thread pool. Each range is
+ * handed to the caller as soon as it and all ranges before it are scanned, so the
+ * results are imported while the rest of the folder is scanned, always in the same
+ * order as a serial scan over the same folder list. Only a few ranges are scanned
+ * ahead of the caller, so memory does not grow with the size of the library.
+ *
+ * @author vun
+ *
+ */
+public class BeatmapScanner
+{
+	private static final Logger LOGGER = Logger.getLogger(BeatmapScanner.class);
+
+	/**
+	 * Amount of mapset folders in a range, scanned serially by a single thread
+	 */
+	private static final int FOLDERS_PER_TASK = 16;
+
+	/**
+	 * Amount of ranges scanned ahead of the caller, per scanning thread
+	 */
+	private static final int RANGES_AHEAD = 4;
+
+	private File mSongsFolder;
+
+	/**
+	 * Amount of threads used for scanning. 1 scans serially on the calling thread.
+	 */
+	private int mParallelism;
+
+	/**
+	 * Header parser of each scanning thread
+	 */
+	private ThreadLocal<OsuHeaderParser> mParsers = new ThreadLocal<OsuHeaderParser>()
+	{
+		@Override
+		protected OsuHeaderParser initialValue()
+		{
+			return new OsuHeaderParser();
+		}
+	};
+
+	/**
+	 * Set when the scan is cancelled. Remaining mapset folders are skipped.
+	 */
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * Constructs a scanner for the given Songs folder
+	 *
+	 * @param songsFolder	Songs folder of Osu!
+	 * @param parallelism	Amount of threads to scan with, values below 1 use one thread per processor
+	 */
+	public BeatmapScanner(File songsFolder, int parallelism)
+	{
+		mSongsFolder = songsFolder;
+		mParallelism = parallelism < 1 ? Runtime.getRuntime().availableProcessors() : parallelism;
+	}
+
+	/**
+	 * Lists all mapset folders in the Songs folder
+	 */
+	public String[] listMapsets()
+	{
+		String directories[] = mSongsFolder.list(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return new File(dir, name).isDirectory();
+			}
+		});
+
+		return directories == null ? new String[0] : directories;
+	}
+
+	/**
+	 * Scans the given mapset folders. Scanned mapsets are handed to the consumer on the
+	 * calling thread, range by range in folder order, while the next ranges are scanned.
+	 *
+	 * @param directories	Mapset folders, relative to the Songs folder
+	 * @param consumer		Receives the mapsets of each scanned range
+	 */
+	public void scan(String[] directories, Consumer<List<Mapset>> consumer)
+	{
+		if(mParallelism == 1 || directories.length <= FOLDERS_PER_TASK)
+		{
+			for(int from = 0; from < directories.length && !mCancelled; from += FOLDERS_PER_TASK)
+			{
+				consumer.accept(scanRange(directories, from, Math.min(from + FOLDERS_PER_TASK, directories.length)));
+			}
+			return;
+		}
+
+		LOGGER.info("Scanning " + directories.length + " mapsets with " + mParallelism + " threads...");
+		ExecutorService pool = Executors.newFixedThreadPool(mParallelism);
+		BlockingQueue<Future<List<Mapset>>> ranges = new ArrayBlockingQueue<>(mParallelism * RANGES_AHEAD);
+		try
+		{
+			int next = 0;
+			while(!mCancelled)
+			{
+				// Keeps the pool busy up to the look-ahead
+				while(next < directories.length && ranges.remainingCapacity() > 0)
+				{
+					int from = next;
+					int to = Math.min(from + FOLDERS_PER_TASK, directories.length);
+					ranges.add(pool.submit(new Callable<List<Mapset>>()
+					{
+						@Override
+						public List<Mapset> call()
+						{
+							return scanRange(directories, from, to);
+						}
+					}));
+					next = to;
+				}
+
+				Future<List<Mapset>> range = ranges.poll();
+				if(range == null)
+				{
+					return;
+				}
+
+				try
+				{
+					consumer.accept(range.get());
+				}
+				catch (ExecutionException e)
+				{
+					LOGGER.error("Unable to scan some mapsets");
+					LOGGER.debug(e.getCause().getClass().getName() + " - " + e.getCause().getMessage());
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Cancels a running scan. The scan returns once the range being handed over is consumed.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+	}
+
+	/**
+	 * Scans a range of mapset folders serially
+	 */
+	private List<Mapset> scanRange(String[] directories, int from, int to)
+	{
+		List<Mapset> mapsets = new ArrayList<>();
+		for(int i = from; i < to && !mCancelled; i++)
+		{
+			Mapset mapset = scanMapset(directories[i]);
+			if(mapset != null)
+			{
+				mapsets.add(mapset);
+			}
+		}
+
+		return mapsets;
+	}
+
+	/**
+	 * Describes the files of a mapset folder without reading any beatmap
+	 *
+	 * @param dir Mapset folder, relative to the Songs folder
+	 * @return The mapset, or null if the folder cannot be listed
+	 */
+	public Mapset describeMapset(String dir)
+	{
+		File dirFile = new File(mSongsFolder, dir);
+		long lastModified = dirFile.lastModified();
+		String files[] = dirFile.list();
+
+		if(files == null)
+		{
+			return null;
+		}
+
+		// Each difficulty is stored in a separate beatmap
+		Map<String, Long> beatmapSizes = new LinkedHashMap<>();
+		for (String file : files)
+		{
+			if(file.endsWith(".osu"))
+			{
+				beatmapSizes.put(file, new File(dirFile, file).length());
+			}
+		}
+
+		return new Mapset(dir, lastModified, files.length, beatmapSizes);
+	}
+
+	/**
+	 * Reads all beatmaps in a mapset folder
+	 *
+	 * @param dir Mapset folder, relative to the Songs folder
+	 * @return The mapset with one music for each difficulty in the folder,
+	 * 			or null if the folder cannot be listed
+	 */
+	public Mapset scanMapset(String dir)
+	{
+		Mapset mapset = describeMapset(dir);
+		if(mapset == null)
+		{
+			return null;
+		}
+
+		// Since each difficulty can specify its own audio file,
+		// All difficulty needs to be considered.
+		for (String beatmap : mapset.getBeatmapSizes().keySet())
+		{
+			try
+			{
+				mapset.getMusics().add(readBeatmap(dir, beatmap));
+			}
+			catch (IOException e)
+			{
+				LOGGER.error("Unable to load beatmap " + beatmap);
+				LOGGER.debug(e.getMessage());
+			}
+		}
+
+		return mapset;
+	}
+
+	/**
+	 * Reads a single beatmap into a Music
+	 *
+	 * @param dir		Mapset folder, relative to the Songs folder
+	 * @param beatmap	File name of the beatmap in the mapset folder
+	 * @throws IOException
+	 */
+	public Music readBeatmap(String dir, String beatmap) throws IOException
+	{
+		File beatmapFile = new File(new File(mSongsFolder, dir), beatmap);
+
+		// Get MapSet ID and name
+		String dirnameData[] = dir.split(" ", 2);
+		String mapsetId = dirnameData[0];
+		//String mapsetName = dirnameData.length == 2? dirnameData[1] : "";
+
+		OsuHeaderParser parser = mParsers.get();
+		Map<String, String> metadata = new HashMap<>();
+		long length = parser.parseWithLength(beatmapFile, metadata);
+		if(length >= 0)
+		{
+			metadata.put(Music.KEY_LENGTH, Long.toString(length));
+		}
+		return new Music(mapsetId + metadata.get("AudioFilename"), dir, beatmap, metadata);
+	}
+}
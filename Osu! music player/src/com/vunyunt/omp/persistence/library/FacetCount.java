@@ -0,0 +1,45 @@
+package com.vunyunt.omp.persistence.library;
+
+/**
+ * A value of a facet dimension, with the amount of musics having it
+ *
+ * @author vun
+ *
+ */
+public class FacetCount
+{
+	private String mDimension;
+	private String mValue;
+	private int mCount;
+
+	public FacetCount(String dimension, String value, int count)
+	{
+		mDimension = dimension;
+		mValue = value;
+		mCount = count;
+	}
+
+	/**
+	 * Facet dimension, one of {@link Facets#DIMENSIONS}
+	 */
+	public String getDimension()
+	{
+		return mDimension;
+	}
+
+	public String getValue()
+	{
+		return mValue;
+	}
+
+	public int getCount()
+	{
+		return mCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		return mValue + " (" + mCount + ")";
+	}
+}
@@ -0,0 +1,207 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Facet counts and drill-down over the metadata of musics.
+ *
+ * Each value of a facet dimension is indexed twice at commit time, in the field
+ * dimension.facet:
+ * <ul>
+ * <li>as a SortedSetDocValues value, counted per segment ordinal without loading any
+ * stored field</li>
+ * <li>as an exact term, to drill down to the musics having the value</li>
+ * </ul>
+ *
+ * @author vun
+ *
+ */
+public class Facets
+{
+	/**
+	 * Metadata keys which are facet dimensions
+	 */
+	public static final String[] DIMENSIONS = new String[] { "Artist", "Creator", "Source", "Tags" };
+
+	public static final String SUFFIX_FACET = ".facet";
+
+	/**
+	 * Dimension whose metadata value is a list of words, each word being a facet value
+	 */
+	private static final String DIMENSION_TAGS = "Tags";
+
+	/**
+	 * Adds the facet fields of a music to a document
+	 *
+	 * @param musicData Music serialized by {@link Music#serializeToMap()}
+	 */
+	public static void addFields(Document doc, Map<String, String> musicData)
+	{
+		for (String dimension : DIMENSIONS)
+		{
+			for (String value : getValues(dimension, musicData.get(dimension)))
+			{
+				doc.add(new SortedSetDocValuesField(dimension + SUFFIX_FACET, new BytesRef(value)));
+				doc.add(new StringField(dimension + SUFFIX_FACET, value, Field.Store.NO));
+			}
+		}
+	}
+
+	/**
+	 * Splits a metadata value into the facet values of a dimension
+	 */
+	private static Set<String> getValues(String dimension, String metadata)
+	{
+		Set<String> values = new HashSet<>();
+		if(metadata == null)
+		{
+			return values;
+		}
+
+		if(DIMENSION_TAGS.equals(dimension))
+		{
+			// Tags are written by hand in any case
+			for (String tag : metadata.toLowerCase(Locale.ROOT).split("\\s+"))
+			{
+				if(!tag.isEmpty())
+				{
+					values.add(tag);
+				}
+			}
+		}
+		else if(!metadata.trim().isEmpty())
+		{
+			values.add(metadata.trim());
+		}
+
+		return values;
+	}
+
+	/**
+	 * Builds a query matching the musics having the given value in a dimension
+	 */
+	public static Query drillDown(String dimension, String value)
+	{
+		return new TermQuery(new Term(dimension + SUFFIX_FACET, value));
+	}
+
+	/**
+	 * Counts the musics having each value of a dimension
+	 *
+	 * @param filter	Only counts the musics matching this query, all musics if null
+	 * @param limit		Maximum amount of values returned
+	 * @return The most frequent values, by descending count then by value
+	 * @throws IOException
+	 */
+	public static List<FacetCount> count(IndexSearcher searcher, String dimension, Query filter, int limit) throws IOException
+	{
+		FacetCollector collector = new FacetCollector(dimension + SUFFIX_FACET);
+		searcher.search(filter != null ? filter : new MatchAllDocsQuery(), collector);
+		collector.flush();
+
+		List<FacetCount> counts = new ArrayList<>(collector.mTotals.size());
+		for (Map.Entry<String, Integer> e : collector.mTotals.entrySet())
+		{
+			counts.add(new FacetCount(dimension, e.getKey(), e.getValue()));
+		}
+		Collections.sort(counts, new Comparator<FacetCount>()
+		{
+			@Override
+			public int compare(FacetCount a, FacetCount b)
+			{
+				int c = Integer.compare(b.getCount(), a.getCount());
+				return c != 0 ? c : a.getValue().compareTo(b.getValue());
+			}
+		});
+
+		return counts.size() > limit ? new ArrayList<>(counts.subList(0, limit)) : counts;
+	}
+
+	/**
+	 * Counts the values of a facet field per segment ordinal, then adds the counts of
+	 * each segment to the totals by value
+	 */
+	private static class FacetCollector extends SimpleCollector
+	{
+		private String mField;
+		private Map<String, Integer> mTotals = new HashMap<>();
+
+		private SortedSetDocValues mValues;
+		private int[] mCounts;
+
+		private FacetCollector(String field)
+		{
+			mField = field;
+		}
+
+		@Override
+		protected void doSetNextReader(LeafReaderContext context) throws IOException
+		{
+			flush();
+			mValues = DocValues.getSortedSet(context.reader(), mField);
+			mCounts = new int[(int) mValues.getValueCount()];
+		}
+
+		@Override
+		public void collect(int doc) throws IOException
+		{
+			mValues.setDocument(doc);
+			long ord;
+			while((ord = mValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS)
+			{
+				mCounts[(int) ord]++;
+			}
+		}
+
+		@Override
+		public boolean needsScores()
+		{
+			return false;
+		}
+
+		/**
+		 * Adds the counts of the current segment to the totals.
+		 * Ordinals are per segment, so only values counted at least once are looked up.
+		 */
+		private void flush()
+		{
+			if(mCounts == null)
+			{
+				return;
+			}
+
+			for(int ord = 0; ord < mCounts.length; ord++)
+			{
+				if(mCounts[ord] > 0)
+				{
+					mTotals.merge(mValues.lookupOrd(ord).utf8ToString(), mCounts[ord], Integer::sum);
+				}
+			}
+			mCounts = null;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Pages through the results of a search of a {@link MusicIndex}.
+ *
+ * Each page is fetched from the index on demand, continuing after the last hit of
+ * the previous page. All pages are fetched from the searcher of the first page,
+ * pinned by the index, so that commits in between do not shift the hits between
+ * pages. Hits only carry the fields needed to display and play a music,
+ * see {@link Music#DISPLAY_FIELDS}. The remaining metadata is loaded with
+ * {@link OsuMusicLibrary#loadMusic(Music)} when needed.
+ *
+ * @author vun
+ *
+ */
+class IndexSearchCursor implements SearchCursor
+{
+	private MusicIndex mIndex;
+
+	/**
+	 * Query searched, null if nothing can match
+	 */
+	private Query mQuery;
+
+	/**
+	 * Normalized search text, facet and sort, the key of the first page in the query cache
+	 */
+	private String mKey;
+
+	/**
+	 * Sort of the hits, null to sort by relevance
+	 */
+	private Sort mSort;
+	private int mPageSize;
+
+	/**
+	 * Version of the searcher pinned on the first page, -1 before
+	 */
+	private long mSearcherVersion = -1;
+
+	/**
+	 * Last hit of the previous page
+	 */
+	private ScoreDoc mAfter;
+
+	/**
+	 * Amount of hits in total, -1 until the first page is fetched
+	 */
+	private int mTotalHits = -1;
+	private int mFetched = 0;
+
+	IndexSearchCursor(MusicIndex index, Query query, String key, Sort sort, int pageSize)
+	{
+		mIndex = index;
+		mQuery = query;
+		mKey = key;
+		mSort = sort;
+		mPageSize = pageSize;
+	}
+
+	@Override
+	public synchronized List<Music> nextPage() throws IOException
+	{
+		List<Music> page = new ArrayList<>();
+		if(!hasMore())
+		{
+			return page;
+		}
+
+		if(mSearcherVersion < 0)
+		{
+			mSearcherVersion = mIndex.pinSearcher();
+		}
+
+		TopDocs docs = mIndex.searchAfter(mSearcherVersion, mQuery, mKey, mSort, mAfter, mPageSize, page);
+		mTotalHits = docs.totalHits;
+		mFetched += docs.scoreDocs.length;
+
+		if(docs.scoreDocs.length > 0)
+		{
+			mAfter = docs.scoreDocs[docs.scoreDocs.length - 1];
+		}
+		else
+		{
+			// The pinned searcher was released and the index changed since the last page
+			mTotalHits = mFetched;
+		}
+
+		return page;
+	}
+
+	@Override
+	public synchronized boolean hasMore()
+	{
+		return mQuery != null && (mTotalHits < 0 || mFetched < mTotalHits);
+	}
+
+	@Override
+	public synchronized int getTotalHits()
+	{
+		return mTotalHits;
+	}
+}
@@ -0,0 +1,164 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Binary snapshot of all musics of a library, read at startup to show the music list
+ * before the index is opened.
+ *
+ * The file holds a header (magic, format version, amount of musics) followed by the
+ * {@link MusicCodec} payload of each music, preceded by its length. It is read into
+ * memory at once rather than mapped: a mapping stays open until garbage collected, and
+ * an open mapping prevents replacing the file on Windows. It is written to a temporary
+ * file first which then replaces the snapshot, so that an interrupted write never
+ * leaves a partial snapshot.
+ *
+ * @author vun
+ *
+ */
+public class LibrarySnapshot
+{
+	public static final String SNAPSHOT_FILE_PATH = "./musicindex.snapshot";
+
+	private static final int MAGIC = 0x4F4D5053;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int COUNT_POSITION = 8;
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Reads all musics of a snapshot
+	 *
+	 * @return The musics, fully loaded
+	 * @throws IOException If the file is missing, of another format or truncated
+	 */
+	public static List<Music> read(File file) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		if(in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+		{
+			throw new IOException("Not a library snapshot");
+		}
+
+		int count = in.getInt();
+		if(count < 0)
+		{
+			throw new IOException("Not a library snapshot");
+		}
+
+		// Every music takes at least its length, a corrupted count does not allocate more
+		List<Music> musics = new ArrayList<>(Math.min(count, in.remaining() / 4));
+		for(int i = 0; i < count; i++)
+		{
+			int length = in.remaining() >= 4 ? in.getInt() : -1;
+			if(length < 0 || length > in.remaining())
+			{
+				throw new IOException("Truncated library snapshot");
+			}
+
+			// Decoding copies the values out of the file content
+			musics.add(MusicCodec.decode(new BytesRef(bytes, in.position(), length), true));
+			in.position(in.position() + length);
+		}
+
+		return musics;
+	}
+
+	/**
+	 * Writes a snapshot of all musics of an index, replacing the previous snapshot
+	 *
+	 * @throws IOException
+	 */
+	public static void write(File file, MusicIndex index) throws IOException
+	{
+		File tempFile = new File(file.getPath() + ".tmp");
+		try(FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+			out.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(0);
+
+			int[] count = new int[] { 0 };
+			IOException[] error = new IOException[1];
+			index.forEachMusic(MusicIndex.LOAD_BATCH_SIZE, new Consumer<List<Music>>()
+			{
+				@Override
+				public void accept(List<Music> batch)
+				{
+					for (Music m : batch)
+					{
+						if(error[0] != null)
+						{
+							return;
+						}
+
+						BytesRef payload = MusicCodec.encode(m);
+						try
+						{
+							if(out.remaining() < 4 + payload.length)
+							{
+								drain(channel, out);
+							}
+
+							if(out.remaining() < 4 + payload.length)
+							{
+								// Larger than the buffer, written on its own
+								ByteBuffer large = ByteBuffer.allocate(4 + payload.length);
+								large.putInt(payload.length).put(payload.bytes, payload.offset, payload.length);
+								drain(channel, large);
+							}
+							else
+							{
+								out.putInt(payload.length).put(payload.bytes, payload.offset, payload.length);
+							}
+							count[0]++;
+						}
+						catch (IOException e)
+						{
+							error[0] = e;
+						}
+					}
+				}
+			});
+			if(error[0] != null)
+			{
+				throw error[0];
+			}
+			drain(channel, out);
+
+			// The amount of musics is only known once all are written
+			ByteBuffer header = ByteBuffer.allocate(4);
+			header.putInt(count[0]).flip();
+			channel.write(header, COUNT_POSITION);
+			channel.force(false);
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes the content of a buffer to the channel and clears it
+	 */
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
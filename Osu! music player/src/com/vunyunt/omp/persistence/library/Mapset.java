@@ -0,0 +1,87 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mapset folder in the Songs folder, as seen by the last scan.
+ *
+ * @author vun
+ *
+ */
+public class Mapset
+{
+	/**
+	 * Folder of the mapset, using the Songs folder as base
+	 */
+	private String mFolder;
+
+	/**
+	 * Last modified time of the mapset folder
+	 */
+	private long mLastModified;
+
+	/**
+	 * Amount of files in the mapset folder
+	 */
+	private int mFileCount;
+
+	/**
+	 * Size of each beatmap (.osu) in the folder, keyed by file name
+	 */
+	private Map<String, Long> mBeatmapSizes;
+
+	/**
+	 * Musics read from the beatmaps. Empty if the beatmaps are not read.
+	 */
+	private List<Music> mMusics = new ArrayList<>();
+
+	public Mapset(String folder, long lastModified, int fileCount, Map<String, Long> beatmapSizes)
+	{
+		mFolder = folder;
+		mLastModified = lastModified;
+		mFileCount = fileCount;
+		mBeatmapSizes = beatmapSizes;
+	}
+
+	/**
+	 * @see Mapset#mFolder
+	 */
+	public String getFolder()
+	{
+		return mFolder;
+	}
+
+	/**
+	 * @see Mapset#mLastModified
+	 */
+	public long getLastModified()
+	{
+		return mLastModified;
+	}
+
+	/**
+	 * @see Mapset#mFileCount
+	 */
+	public int getFileCount()
+	{
+		return mFileCount;
+	}
+
+	/**
+	 * @see Mapset#mBeatmapSizes
+	 */
+	public Map<String, Long> getBeatmapSizes()
+	{
+		return mBeatmapSizes;
+	}
+
+	/**
+	 * @see Mapset#mMusics
+	 */
+	public List<Music> getMusics()
+	{
+		return mMusics;
+	}
+}
@@ -0,0 +1,262 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.vunyunt.omp.persistence.AppConfig;
+
+/**
+ * Records the state of every mapset folder at the time it was last imported,
+ * so that unchanged folders can be skipped on the next start.
+ *
+ * @author vun
+ *
+ */
+public class MapsetManifest
+{
+	private static final Logger LOGGER = Logger.getLogger(MapsetManifest.class);
+
+	public transient static final String MANIFEST_FILE_PATH = "./musicindex.manifest.json";
+
+	/**
+	 * State of a single mapset folder
+	 */
+	public static class Entry
+	{
+		public long lastModified;
+		public int fileCount;
+
+		/**
+		 * Time the mapset was added to the Songs folder, in milliseconds since the epoch.
+		 * The last modified time of the folder when first imported.
+		 */
+		public long addedAt;
+
+		public Map<String, Long> beatmapSizes = new HashMap<>();
+
+		/**
+		 * IDs of the musics imported from the folder
+		 */
+		public List<String> musicIds = new ArrayList<>();
+	}
+
+	/**
+	 * Recorded mapset folders, keyed by folder name
+	 */
+	public Map<String, Entry> mapsets = new HashMap<>();
+
+	/**
+	 * Recorded folders each music ID is imported from, built when first needed.
+	 * IDs of unsubmitted mapsets are often shared by several folders.
+	 */
+	private transient Map<String, List<String>> mFoldersById;
+
+	/**
+	 * Loads the manifest from the given file.
+	 *
+	 * @return The loaded manifest, or an empty manifest if the file does not exist or cannot be read
+	 */
+	public static MapsetManifest load(Gson gson, File file)
+	{
+		if(file.exists())
+		{
+			try
+			{
+				MapsetManifest manifest = gson.fromJson(FileUtils.readFileToString(file, AppConfig.DEFAULT_CHARSET), MapsetManifest.class);
+				if(manifest != null && manifest.mapsets != null)
+				{
+					return manifest;
+				}
+			}
+			catch(IOException | JsonSyntaxException e)
+			{
+				LOGGER.error("Unable to read mapset manifest, all mapsets will be rescanned");
+				LOGGER.debug(e.getMessage());
+			}
+		}
+
+		return new MapsetManifest();
+	}
+
+	/**
+	 * Saves the manifest to the given file
+	 *
+	 * @return True if the manifest is saved successfully. False otherwise.
+	 */
+	public boolean save(Gson gson, File file)
+	{
+		try
+		{
+			FileUtils.write(file, gson.toJson(this), AppConfig.DEFAULT_CHARSET);
+			return true;
+		}
+		catch(IOException e)
+		{
+			LOGGER.error("Unable to save mapset manifest");
+			LOGGER.debug(e.getMessage());
+			return false;
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return mapsets.isEmpty();
+	}
+
+	public Set<String> getFolders()
+	{
+		return mapsets.keySet();
+	}
+
+	public Entry get(String folder)
+	{
+		return mapsets.get(folder);
+	}
+
+	public Entry remove(String folder)
+	{
+		Entry e = mapsets.remove(folder);
+		unindex(folder, e);
+		return e;
+	}
+
+	public void clear()
+	{
+		mapsets.clear();
+		mFoldersById = null;
+	}
+
+	/**
+	 * Gets a recorded folder a music ID is imported from
+	 *
+	 * @return The folder, null if no recorded folder has a music with the ID
+	 */
+	public String getFolder(String id)
+	{
+		if(mFoldersById == null)
+		{
+			mFoldersById = new HashMap<>();
+			for (Map.Entry<String, Entry> e : mapsets.entrySet())
+			{
+				index(e.getKey(), e.getValue());
+			}
+		}
+
+		List<String> folders = mFoldersById.get(id);
+		return folders == null ? null : folders.get(0);
+	}
+
+	private void index(String folder, Entry e)
+	{
+		for (String id : e.musicIds)
+		{
+			List<String> folders = mFoldersById.get(id);
+			if(folders == null)
+			{
+				folders = new ArrayList<>(1);
+				mFoldersById.put(id, folders);
+			}
+			folders.add(folder);
+		}
+	}
+
+	private void unindex(String folder, Entry e)
+	{
+		if(mFoldersById == null || e == null)
+		{
+			return;
+		}
+
+		for (String id : e.musicIds)
+		{
+			List<String> folders = mFoldersById.get(id);
+			if(folders != null && folders.remove(folder) && folders.isEmpty())
+			{
+				mFoldersById.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Checks if a mapset folder is unchanged by its last modified time alone.
+	 * This only costs a single stat of the folder.
+	 */
+	public boolean isUnmodified(String folder, long lastModified)
+	{
+		Entry e = mapsets.get(folder);
+		return e != null && e.lastModified == lastModified;
+	}
+
+	/**
+	 * Checks if a described mapset has the same files as recorded.
+	 * Used when the last modified time of the folder changed, as that can happen
+	 * without any beatmap changing.
+	 */
+	public boolean isUnchanged(Mapset mapset)
+	{
+		Entry e = mapsets.get(mapset.getFolder());
+		return e != null && e.fileCount == mapset.getFileCount() && e.beatmapSizes.equals(mapset.getBeatmapSizes());
+	}
+
+	/**
+	 * Updates the last modified time of a recorded mapset
+	 */
+	public void touch(Mapset mapset)
+	{
+		Entry e = mapsets.get(mapset.getFolder());
+		if(e != null)
+		{
+			e.lastModified = mapset.getLastModified();
+		}
+	}
+
+	/**
+	 * Records a scanned mapset, replacing the previous record of the same folder.
+	 * The time the mapset was added is kept, and set on the musics of the mapset. A folder
+	 * not recorded yet was added when last modified, which is when it was extracted, so
+	 * that the mapsets keep their order when the manifest is cleared and all reimported.
+	 */
+	public void put(Mapset mapset)
+	{
+		Entry previous = mapsets.get(mapset.getFolder());
+		Entry e = new Entry();
+		if(previous != null && previous.addedAt > 0)
+		{
+			e.addedAt = previous.addedAt;
+		}
+		else
+		{
+			long now = System.currentTimeMillis();
+			e.addedAt = mapset.getLastModified() > 0 ? Math.min(mapset.getLastModified(), now) : now;
+		}
+		e.lastModified = mapset.getLastModified();
+		e.fileCount = mapset.getFileCount();
+		e.beatmapSizes = new HashMap<>(mapset.getBeatmapSizes());
+		for (Music m : mapset.getMusics())
+		{
+			// Difficulties sharing an audio file share an ID
+			if(!e.musicIds.contains(m.getId()))
+			{
+				e.musicIds.add(m.getId());
+			}
+			m.setAddedAt(e.addedAt);
+		}
+
+		mapsets.put(mapset.getFolder(), e);
+		unindex(mapset.getFolder(), previous);
+		if(mFoldersById != null)
+		{
+			index(mapset.getFolder(), e);
+		}
+	}
+}
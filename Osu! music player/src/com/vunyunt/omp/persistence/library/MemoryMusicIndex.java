@@ -0,0 +1,828 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Search backend holding an inverted index of the searched fields in memory, with
+ * postings in primitive int arrays.
+ *
+ * Every word of the {@link NGramSearch#SEARCH_FIELDS} is split into its trigrams and
+ * its prefixes of one and two characters, each mapped to the sorted numbers of the
+ * musics containing it. Query words are matched like with {@link NGramSearch}: words
+ * shorter than 3 characters match the beginning of words, longer words match inside
+ * words. As the trigrams of a word do not have to be adjacent in a music, musics found
+ * through trigrams are checked against their text.
+ *
+ * The index is rebuilt from all musics of the {@link MusicIndex} by {@link #refresh()}
+ * and replaced as a whole. Changes of a few musics, such as a mapset downloaded while
+ * running, are applied by {@link #update(Map)} to a copy sharing the postings they do
+ * not touch. Until the first refresh, and for searches within a facet value, searches
+ * are delegated to the MusicIndex.
+ *
+ * @author vun
+ *
+ */
+public class MemoryMusicIndex implements SearchBackend
+{
+	private static final Logger LOGGER = Logger.getLogger(MemoryMusicIndex.class);
+
+	/**
+	 * Length of the n-grams indexed
+	 */
+	private static final int GRAM = 3;
+
+	/**
+	 * Starts the keys of word prefixes, never part of a word
+	 */
+	private static final char EDGE = ' ';
+
+	/**
+	 * Amount of changed musics from which the index is rebuilt instead of updated
+	 */
+	private static final int MAX_UPDATE_CHANGES = 256;
+
+	private MusicIndex mIndex;
+
+	/**
+	 * Index searched, null until the first refresh
+	 */
+	private volatile Snapshot mSnapshot;
+
+	public MemoryMusicIndex(MusicIndex index)
+	{
+		mIndex = index;
+	}
+
+	@Override
+	public SearchCursor search(String searchQuery, String facetDimension, String facetValue, MusicSort sort, int pageSize)
+	{
+		Snapshot snapshot = mSnapshot;
+		if(snapshot == null || (facetDimension != null && facetValue != null))
+		{
+			return mIndex.search(searchQuery, facetDimension, facetValue, sort, pageSize);
+		}
+
+		return new MemorySearchCursor(snapshot.mMusics, snapshot.search(searchQuery, sort), pageSize);
+	}
+
+	@Override
+	public List<FacetCount> getFacetCounts(String dimension, int limit) throws IOException
+	{
+		return mIndex.getFacetCounts(dimension, limit);
+	}
+
+	/**
+	 * Rebuilds the index from all musics of the MusicIndex. Searches keep using the
+	 * previous index until the new one is built.
+	 */
+	@Override
+	public void refresh() throws IOException
+	{
+		long startTime = System.nanoTime();
+		Builder builder = new Builder();
+		mIndex.forEachMusic(MusicIndex.LOAD_BATCH_SIZE, new Consumer<List<Music>>()
+		{
+			@Override
+			public void accept(List<Music> batch)
+			{
+				for (Music m : batch)
+				{
+					builder.add(m);
+				}
+			}
+		});
+		mSnapshot = builder.build();
+
+		LOGGER.info("Built in-memory search index of " + mSnapshot.mSize + " musics, " + mSnapshot.mPostings.size()
+				+ " keys and " + builder.mPostingCount + " postings in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
+
+	/**
+	 * Applies the changes to a copy of the index, rebuilt instead if there are many.
+	 * Nothing to do before the first refresh, which reads them from the MusicIndex.
+	 */
+	@Override
+	public void update(Map<String, Music> changes) throws IOException
+	{
+		Snapshot snapshot = mSnapshot;
+		if(snapshot == null || changes.isEmpty())
+		{
+			return;
+		}
+
+		if(changes.size() > MAX_UPDATE_CHANGES)
+		{
+			refresh();
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		mSnapshot = snapshot.update(changes);
+		LOGGER.debug("Updated in-memory search index with " + changes.size() + " changes in "
+				+ (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
+
+	/**
+	 * Amount of musics searched, 0 until the first refresh
+	 */
+	public int size()
+	{
+		Snapshot snapshot = mSnapshot;
+		return snapshot == null ? 0 : snapshot.mSize;
+	}
+
+	/**
+	 * Words of the searched fields of a music, each preceded by a space
+	 */
+	private static String text(Music music)
+	{
+		StringBuilder text = new StringBuilder();
+		for (String field : NGramSearch.SEARCH_FIELDS)
+		{
+			String value = music.get(MusicKey.fromKey(field));
+			if(value == null)
+			{
+				continue;
+			}
+
+			for (String word : analyze(value))
+			{
+				text.append(EDGE).append(word);
+			}
+		}
+		return text.toString();
+	}
+
+	private static String lowerCase(String value)
+	{
+		return value == null ? null : value.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Adds the keys indexed for a word: its prefixes shorter than a trigram, and its trigrams
+	 */
+	private static void addKeys(String word, Collection<String> keys)
+	{
+		for(int i = 1; i < GRAM && i <= word.length(); i++)
+		{
+			keys.add(EDGE + word.substring(0, i));
+		}
+		for(int i = 0; i + GRAM <= word.length(); i++)
+		{
+			keys.add(word.substring(i, i + GRAM));
+		}
+	}
+
+	/**
+	 * Distinct keys indexed for the words of a text
+	 */
+	private static Set<String> textKeys(String text)
+	{
+		Set<String> keys = new HashSet<>();
+		for (String word : analyze(text))
+		{
+			addKeys(word, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Splits text into lower case words of letters and digits, like {@link NGramSearch}
+	 * does without going through a Lucene token stream
+	 */
+	private static List<String> analyze(String text)
+	{
+		List<String> words = new ArrayList<>();
+		StringBuilder word = new StringBuilder();
+		for(int i = 0; i < text.length(); )
+		{
+			int c = text.codePointAt(i);
+			i += Character.charCount(c);
+			if(Character.isLetterOrDigit(c))
+			{
+				word.appendCodePoint(Character.toLowerCase(c));
+			}
+			else if(word.length() > 0)
+			{
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		if(word.length() > 0)
+		{
+			words.add(word.toString());
+		}
+
+		return words;
+	}
+
+	/**
+	 * Compares two music numbers
+	 */
+	private interface NumberComparator
+	{
+		int compare(int a, int b);
+	}
+
+	/**
+	 * Immutable index of the musics as of a refresh. Musics are numbered in the order
+	 * they were read from the MusicIndex, musics added by an update after them. The
+	 * numbers of removed musics are left unused until the next refresh.
+	 */
+	private static class Snapshot
+	{
+		/**
+		 * Musics by number, null if removed
+		 */
+		private Music[] mMusics;
+
+		/**
+		 * Words of the searched fields of each music, each preceded by a space
+		 */
+		private String[] mTexts;
+
+		/**
+		 * Lower case title and artist of each music, compared by the TITLE and ARTIST orders
+		 */
+		private String[] mTitles;
+		private String[] mArtists;
+
+		/**
+		 * Amount of musics not removed
+		 */
+		private int mSize;
+
+		/**
+		 * Numbers of the musics having each trigram or word prefix, ascending
+		 */
+		private Map<String, int[]> mPostings;
+
+		/**
+		 * Numbers of the musics in each order, and the position of each music in it,
+		 * by {@link MusicSort#ordinal()}. Null for RELEVANCE.
+		 */
+		private int[][] mOrders;
+		private int[][] mRanks;
+
+		/**
+		 * Finds the musics matching every word of the text
+		 *
+		 * @return Numbers of the musics found, in the given order
+		 */
+		private int[] search(String text, MusicSort sort)
+		{
+			List<String> words = analyze(text);
+			int[] ranks = mRanks[sort.ordinal()];
+			if(words.isEmpty())
+			{
+				if(ranks != null)
+				{
+					// Never modified, can be shared with the cursor
+					return mOrders[sort.ordinal()];
+				}
+
+				int[] hits = new int[mSize];
+				int count = 0;
+				for(int i = 0; i < mMusics.length; i++)
+				{
+					if(mMusics[i] != null)
+					{
+						hits[count++] = i;
+					}
+				}
+				return hits;
+			}
+
+			int[] hits = match(words);
+
+			// Sorts the numbers with their rank in the upper half of a long
+			long[] keys = new long[hits.length];
+			for(int i = 0; i < hits.length; i++)
+			{
+				long rank = ranks != null ? ranks[hits[i]] : words.size() - countPrefixMatches(mTexts[hits[i]], words);
+				keys[i] = (rank << 32) | hits[i];
+			}
+			Arrays.sort(keys);
+			for(int i = 0; i < hits.length; i++)
+			{
+				hits[i] = (int) keys[i];
+			}
+
+			return hits;
+		}
+
+		private int[] match(List<String> words)
+		{
+			// Intersects the shortest postings first
+			List<int[]> postings = new ArrayList<>();
+			for (String word : words)
+			{
+				for (String key : keys(word))
+				{
+					int[] p = mPostings.get(key);
+					if(p == null)
+					{
+						return new int[0];
+					}
+					postings.add(p);
+				}
+			}
+			postings.sort(new Comparator<int[]>()
+			{
+				@Override
+				public int compare(int[] a, int[] b)
+				{
+					return Integer.compare(a.length, b.length);
+				}
+			});
+
+			int[] hits = postings.get(0);
+			for(int i = 1; i < postings.size() && hits.length > 0; i++)
+			{
+				hits = intersect(hits, postings.get(i));
+			}
+
+			// Words longer than a trigram may match trigrams spread over the text
+			int count = 0;
+			int[] matched = new int[hits.length];
+			for (int hit : hits)
+			{
+				if(containsAll(mTexts[hit], words))
+				{
+					matched[count++] = hit;
+				}
+			}
+
+			return Arrays.copyOf(matched, count);
+		}
+
+		/**
+		 * Copies the index with the changed musics replaced, added or removed. Postings
+		 * of keys the changes do not touch are shared with this index.
+		 *
+		 * @param changes Changed musics by ID, null for removed musics
+		 */
+		private Snapshot update(Map<String, Music> changes)
+		{
+			List<Music> added = new ArrayList<>();
+			for (Music m : changes.values())
+			{
+				if(m != null)
+				{
+					added.add(m);
+				}
+			}
+
+			Snapshot s = new Snapshot();
+			int length = mMusics.length + added.size();
+			s.mMusics = Arrays.copyOf(mMusics, length);
+			s.mTexts = Arrays.copyOf(mTexts, length);
+			s.mTitles = Arrays.copyOf(mTitles, length);
+			s.mArtists = Arrays.copyOf(mArtists, length);
+			s.mSize = mSize;
+			s.mPostings = new HashMap<>(mPostings);
+
+			// Previous versions of the changed musics
+			for(int i = 0; i < mMusics.length; i++)
+			{
+				if(mMusics[i] == null || !changes.containsKey(mMusics[i].getId()))
+				{
+					continue;
+				}
+
+				for (String key : textKeys(mTexts[i]))
+				{
+					int[] p = without(s.mPostings.get(key), i);
+					if(p.length > 0)
+					{
+						s.mPostings.put(key, p);
+					}
+					else
+					{
+						s.mPostings.remove(key);
+					}
+				}
+				s.mMusics[i] = null;
+				s.mTexts[i] = null;
+				s.mTitles[i] = null;
+				s.mArtists[i] = null;
+				s.mSize--;
+			}
+
+			// New numbers are above all others, so they are appended to the postings
+			int[] numbers = new int[added.size()];
+			for(int i = 0; i < numbers.length; i++)
+			{
+				int number = mMusics.length + i;
+				Music m = added.get(i);
+				s.mMusics[number] = m;
+				s.mTexts[number] = text(m);
+				s.mTitles[number] = lowerCase(m.getTitle());
+				s.mArtists[number] = lowerCase(m.getArtist());
+				s.mSize++;
+				numbers[i] = number;
+
+				for (String key : textKeys(s.mTexts[number]))
+				{
+					int[] p = s.mPostings.get(key);
+					p = p == null ? new int[1] : Arrays.copyOf(p, p.length + 1);
+					p[p.length - 1] = number;
+					s.mPostings.put(key, p);
+				}
+			}
+
+			s.mOrders = new int[mOrders.length][];
+			s.mRanks = new int[mRanks.length][];
+			for (MusicSort sort : MusicSort.values())
+			{
+				NumberComparator comparator = s.getComparator(sort);
+				if(comparator == null)
+				{
+					continue;
+				}
+
+				// Merges the added musics into the order without the removed ones
+				int[] order = mOrders[sort.ordinal()];
+				int[] kept = new int[order.length];
+				int count = 0;
+				for (int number : order)
+				{
+					if(s.mMusics[number] != null)
+					{
+						kept[count++] = number;
+					}
+				}
+				int[] sortedAdded = sort(numbers.clone(), comparator);
+
+				int[] merged = new int[s.mSize];
+				merge(kept, 0, count, sortedAdded, 0, sortedAdded.length, merged, 0, comparator);
+				s.mOrders[sort.ordinal()] = merged;
+				s.mRanks[sort.ordinal()] = ranks(merged, length);
+			}
+
+			return s;
+		}
+
+		/**
+		 * Builds the orders and ranks of all musics, numbered without gaps
+		 */
+		private void buildOrders()
+		{
+			mOrders = new int[MusicSort.values().length][];
+			mRanks = new int[MusicSort.values().length][];
+			for (MusicSort sort : MusicSort.values())
+			{
+				NumberComparator comparator = getComparator(sort);
+				if(comparator == null)
+				{
+					continue;
+				}
+
+				int[] order = new int[mMusics.length];
+				for(int i = 0; i < order.length; i++)
+				{
+					order[i] = i;
+				}
+				order = sort(order, comparator);
+
+				mOrders[sort.ordinal()] = order;
+				mRanks[sort.ordinal()] = ranks(order, mMusics.length);
+			}
+		}
+
+		/**
+		 * Compares music numbers the same way the MusicIndex sorts, missing values last
+		 *
+		 * @return The comparator, or null for RELEVANCE
+		 */
+		private NumberComparator getComparator(MusicSort sort)
+		{
+			switch(sort)
+			{
+			case TITLE:
+				return new NumberComparator()
+				{
+					@Override
+					public int compare(int a, int b)
+					{
+						int c = compareStrings(mTitles[a], mTitles[b]);
+						return c != 0 ? c : compareStrings(mArtists[a], mArtists[b]);
+					}
+				};
+			case ARTIST:
+				return new NumberComparator()
+				{
+					@Override
+					public int compare(int a, int b)
+					{
+						int c = compareStrings(mArtists[a], mArtists[b]);
+						return c != 0 ? c : compareStrings(mTitles[a], mTitles[b]);
+					}
+				};
+			case LENGTH:
+				return new NumberComparator()
+				{
+					@Override
+					public int compare(int a, int b)
+					{
+						return compareLongs(mMusics[a].getLength(), mMusics[b].getLength(), false);
+					}
+				};
+			case ADDED_AT:
+				return new NumberComparator()
+				{
+					@Override
+					public int compare(int a, int b)
+					{
+						return compareLongs(mMusics[a].getAddedAt(), mMusics[b].getAddedAt(), true);
+					}
+				};
+			default:
+				return null;
+			}
+		}
+
+		private static int compareStrings(String a, String b)
+		{
+			if(a == null || b == null)
+			{
+				return a == null ? (b == null ? 0 : 1) : -1;
+			}
+			return a.compareTo(b);
+		}
+
+		/**
+		 * Compares values where -1 is unknown
+		 */
+		private static int compareLongs(long a, long b, boolean descending)
+		{
+			if(a < 0 || b < 0)
+			{
+				return a < 0 ? (b < 0 ? 0 : 1) : -1;
+			}
+			return descending ? Long.compare(b, a) : Long.compare(a, b);
+		}
+
+		/**
+		 * Sorts music numbers with a stable bottom-up merge sort, equal musics staying in number order
+		 *
+		 * @return The sorted numbers, in the given array or a new one
+		 */
+		private static int[] sort(int[] numbers, NumberComparator comparator)
+		{
+			int[] buffer = new int[numbers.length];
+			for(int width = 1; width < numbers.length; width *= 2)
+			{
+				for(int from = 0; from < numbers.length; from += 2 * width)
+				{
+					int mid = Math.min(from + width, numbers.length);
+					int to = Math.min(from + 2 * width, numbers.length);
+					merge(numbers, from, mid, numbers, mid, to, buffer, from, comparator);
+				}
+
+				int[] t = numbers;
+				numbers = buffer;
+				buffer = t;
+			}
+			return numbers;
+		}
+
+		/**
+		 * Merges two sorted ranges into the output, the first range first among equal musics
+		 */
+		private static void merge(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] out, int outFrom,
+				NumberComparator comparator)
+		{
+			int i = aFrom;
+			int j = bFrom;
+			int k = outFrom;
+			while(i < aTo && j < bTo)
+			{
+				out[k++] = comparator.compare(a[i], b[j]) <= 0 ? a[i++] : b[j++];
+			}
+			System.arraycopy(a, i, out, k, aTo - i);
+			System.arraycopy(b, j, out, k + aTo - i, bTo - j);
+		}
+
+		/**
+		 * Position of each music number in an order
+		 */
+		private static int[] ranks(int[] order, int length)
+		{
+			int[] ranks = new int[length];
+			for(int i = 0; i < order.length; i++)
+			{
+				ranks[order[i]] = i;
+			}
+			return ranks;
+		}
+
+		/**
+		 * Lookup keys of a query word, the same as indexed for the words containing it
+		 */
+		private static List<String> keys(String word)
+		{
+			List<String> keys = new ArrayList<>();
+			if(word.length() < GRAM)
+			{
+				keys.add(EDGE + word);
+			}
+			else
+			{
+				for(int i = 0; i + GRAM <= word.length(); i++)
+				{
+					keys.add(word.substring(i, i + GRAM));
+				}
+			}
+			return keys;
+		}
+
+		private static int[] intersect(int[] a, int[] b)
+		{
+			int[] result = new int[Math.min(a.length, b.length)];
+			int count = 0;
+			int i = 0;
+			int j = 0;
+			while(i < a.length && j < b.length)
+			{
+				if(a[i] < b[j])
+				{
+					i++;
+				}
+				else if(a[i] > b[j])
+				{
+					j++;
+				}
+				else
+				{
+					result[count++] = a[i];
+					i++;
+					j++;
+				}
+			}
+			return Arrays.copyOf(result, count);
+		}
+
+		/**
+		 * Copies ascending numbers without the given number
+		 */
+		private static int[] without(int[] numbers, int number)
+		{
+			int i = Arrays.binarySearch(numbers, number);
+			if(i < 0)
+			{
+				return numbers;
+			}
+
+			int[] result = new int[numbers.length - 1];
+			System.arraycopy(numbers, 0, result, 0, i);
+			System.arraycopy(numbers, i + 1, result, i, result.length - i);
+			return result;
+		}
+
+		private static boolean containsAll(String text, List<String> words)
+		{
+			for (String word : words)
+			{
+				if(word.length() > GRAM && !text.contains(word))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Counts the words matching the beginning of a word of the text, ranked above matches inside words
+		 */
+		private static int countPrefixMatches(String text, List<String> words)
+		{
+			int count = 0;
+			for (String word : words)
+			{
+				if(text.contains(EDGE + word))
+				{
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Builds a {@link Snapshot} from musics added one at a time
+	 */
+	private static class Builder
+	{
+		private List<Music> mMusics = new ArrayList<>();
+		private List<String> mTexts = new ArrayList<>();
+		private List<String> mTitles = new ArrayList<>();
+		private List<String> mArtists = new ArrayList<>();
+		private Map<String, IntList> mPostings = new HashMap<>();
+		private long mPostingCount = 0;
+
+		/**
+		 * Keys of the word being added, reused
+		 */
+		private List<String> mKeys = new ArrayList<>();
+
+		private void add(Music music)
+		{
+			int number = mMusics.size();
+			String text = text(music);
+			for (String word : analyze(text))
+			{
+				mKeys.clear();
+				addKeys(word, mKeys);
+				for (String key : mKeys)
+				{
+					addPosting(key, number);
+				}
+			}
+
+			mMusics.add(music);
+			mTexts.add(text);
+			mTitles.add(lowerCase(music.getTitle()));
+			mArtists.add(lowerCase(music.getArtist()));
+		}
+
+		private void addPosting(String key, int number)
+		{
+			IntList postings = mPostings.get(key);
+			if(postings == null)
+			{
+				postings = new IntList();
+				mPostings.put(key, postings);
+			}
+			if(postings.add(number))
+			{
+				mPostingCount++;
+			}
+		}
+
+		private Snapshot build()
+		{
+			Snapshot snapshot = new Snapshot();
+			snapshot.mMusics = mMusics.toArray(new Music[mMusics.size()]);
+			snapshot.mTexts = mTexts.toArray(new String[mTexts.size()]);
+			snapshot.mTitles = mTitles.toArray(new String[mTitles.size()]);
+			snapshot.mArtists = mArtists.toArray(new String[mArtists.size()]);
+			snapshot.mSize = snapshot.mMusics.length;
+			snapshot.mPostings = new HashMap<>(mPostings.size() * 2);
+			for (Map.Entry<String, IntList> e : mPostings.entrySet())
+			{
+				snapshot.mPostings.put(e.getKey(), e.getValue().toArray());
+			}
+			snapshot.buildOrders();
+
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Growable array of ascending ints
+	 */
+	private static class IntList
+	{
+		private int[] mValues = new int[4];
+		private int mSize = 0;
+
+		/**
+		 * Appends a value, unless it is the last value already
+		 *
+		 * @return True if appended
+		 */
+		private boolean add(int value)
+		{
+			if(mSize > 0 && mValues[mSize - 1] == value)
+			{
+				return false;
+			}
+
+			if(mSize == mValues.length)
+			{
+				mValues = Arrays.copyOf(mValues, mSize * 2);
+			}
+			mValues[mSize++] = value;
+			return true;
+		}
+
+		private int[] toArray()
+		{
+			return Arrays.copyOf(mValues, mSize);
+		}
+	}
+}
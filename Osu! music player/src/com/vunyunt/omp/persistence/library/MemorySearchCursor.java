@@ -0,0 +1,61 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages through the results of a search of a {@link MemoryMusicIndex}.
+ *
+ * All hits are found when searching, pages are only sliced from them.
+ *
+ * @author vun
+ *
+ */
+class MemorySearchCursor implements SearchCursor
+{
+	private Music[] mMusics;
+
+	/**
+	 * Numbers of the musics found, in order
+	 */
+	private int[] mHits;
+	private int mPageSize;
+	private int mFetched = 0;
+
+	/**
+	 * False until the first page is fetched
+	 */
+	private boolean mStarted = false;
+
+	MemorySearchCursor(Music[] musics, int[] hits, int pageSize)
+	{
+		mMusics = musics;
+		mHits = hits;
+		mPageSize = pageSize;
+	}
+
+	@Override
+	public synchronized List<Music> nextPage()
+	{
+		mStarted = true;
+		int end = Math.min(mFetched + mPageSize, mHits.length);
+		List<Music> page = new ArrayList<>(end - mFetched);
+		for(; mFetched < end; mFetched++)
+		{
+			page.add(mMusics[mHits[mFetched]]);
+		}
+		return page;
+	}
+
+	@Override
+	public synchronized boolean hasMore()
+	{
+		return mFetched < mHits.length;
+	}
+
+	@Override
+	public synchronized int getTotalHits()
+	{
+		return mStarted ? mHits.length : -1;
+	}
+}
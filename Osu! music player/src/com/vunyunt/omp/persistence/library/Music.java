@@ -1,14 +1,24 @@
 package com.vunyunt.omp.persistence.library;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import com.vunyunt.omp.persistence.PersistenceManager;
 
 /**
  * Represents a music track.
  *
+ * Kept compact, as a library can hold a music per beatmap of a large Songs folder.
+ * Only the metadata keys of {@link MusicKey} are kept. The attributes displayed and
+ * sorted on are plain fields, artist and creator names are shared between musics
+ * through a {@link StringPool}, and the other keys are held in an array only
+ * allocated once one of them is set.
+ *
  * @author vun
  *
  */
@@ -18,6 +28,23 @@ public class Music
 	public static final String FIELD_FOLDER = "Folder";
 	public static final String FIELD_BEATMAP_FILENAME = "BeatmapFilename";
 
+	/**
+	 * Metadata key of the time of the last hit object, in milliseconds.
+	 * Not part of the beatmap header, read from the end of the beatmap.
+	 */
+	public static final String KEY_LENGTH = "Length";
+
+	/**
+	 * Metadata key of the time the mapset was first imported, in milliseconds since the epoch
+	 */
+	public static final String KEY_ADDED_AT = "AddedAt";
+
+	/**
+	 * Fields needed to display and play a music. Search results only load these.
+	 */
+	public static final Set<String> DISPLAY_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			FIELD_ID, FIELD_FOLDER, FIELD_BEATMAP_FILENAME, "Title", "Artist", "AudioFilename")));
+
 	/**
 	 * ID of music is composed of the beatmap ID (digits in the beginning of the
 	 * name of a beatmap folder) + audio file name.
@@ -37,9 +64,39 @@ public class Music
 	private String mBeatmapFileName;
 
 	/**
-	 * All the metadata of the beatmap
+	 * Shares the artist and creator names between all musics
+	 */
+	private static final StringPool NAME_POOL = new StringPool();
+
+	private String mTitle;
+	private String mArtist;
+	private String mAudioFileName;
+	private String mCreator;
+
+	/**
+	 * Time of the last hit object in milliseconds, -1 if unknown
+	 */
+	private long mLength = -1;
+
+	/**
+	 * Time the mapset was first imported in milliseconds since the epoch, -1 if unknown
+	 */
+	private long mAddedAt = -1;
+
+	/**
+	 * Values of the other metadata keys by {@link MusicKey#ordinal()}, null until one is set
+	 */
+	private String[] mOtherValues;
+
+	/**
+	 * Name to be displayed, computed on first use
 	 */
-	private Map<String, String> mMetadata;
+	private String mName;
+
+	/**
+	 * False if only the {@link Music#DISPLAY_FIELDS} are loaded
+	 */
+	private boolean mComplete = true;
 
 	/**
 	 * Constructs a new music object
@@ -47,7 +104,7 @@ public class Music
 	 * @param id				{@link Music#mId}
 	 * @param folder			{@link Music#mFolder}
 	 * @param beatmapFileName	{@link Music#mBeatmapFileName}
-	 * @param metadata			{@link Music#mMetadata}
+	 * @param metadata			Metadata of the beatmap. Keys not in {@link MusicKey} are dropped.
 	 */
 	public Music(String id, String folder, String beatmapFileName, Map<String, String> metadata)
 	{
@@ -77,7 +134,15 @@ public class Music
 	 */
 	public Map<String, String> serializeToMap()
 	{
-		Map<String, String> serialized = new HashMap<String, String>(mMetadata);
+		Map<String, String> serialized = new HashMap<String, String>();
+		for (MusicKey key : MusicKey.values())
+		{
+			String value = get(key);
+			if(value != null)
+			{
+				serialized.put(key.getKey(), value);
+			}
+		}
 		serialized.put(FIELD_ID, getId());
 		serialized.put(FIELD_FOLDER, getFolder());
 		serialized.put(FIELD_BEATMAP_FILENAME, getBeatmapFileName());
@@ -90,7 +155,148 @@ public class Music
 		mId = id;
 		mFolder = folder;
 		mBeatmapFileName = beatmapFileName;
-		mMetadata = metadata;
+		for (Map.Entry<String, String> e : metadata.entrySet())
+		{
+			MusicKey key = MusicKey.fromKey(e.getKey());
+			if(key != null)
+			{
+				set(key, e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Gets the value of a metadata key
+	 *
+	 * @return The value, null if unknown or not loaded
+	 */
+	public String get(MusicKey key)
+	{
+		switch(key)
+		{
+		case TITLE:
+			return mTitle;
+		case ARTIST:
+			return mArtist;
+		case AUDIO_FILENAME:
+			return mAudioFileName;
+		case CREATOR:
+			return mCreator;
+		case LENGTH:
+			return mLength < 0 ? null : Long.toString(mLength);
+		case ADDED_AT:
+			return mAddedAt < 0 ? null : Long.toString(mAddedAt);
+		default:
+			return mOtherValues == null ? null : mOtherValues[key.ordinal()];
+		}
+	}
+
+	private void set(MusicKey key, String value)
+	{
+		switch(key)
+		{
+		case TITLE:
+			mTitle = value;
+			break;
+		case ARTIST:
+			mArtist = NAME_POOL.get(value);
+			break;
+		case AUDIO_FILENAME:
+			mAudioFileName = value;
+			break;
+		case CREATOR:
+			mCreator = NAME_POOL.get(value);
+			break;
+		case LENGTH:
+			mLength = parseLong(value);
+			break;
+		case ADDED_AT:
+			mAddedAt = parseLong(value);
+			break;
+		default:
+			if(mOtherValues == null)
+			{
+				if(value == null)
+				{
+					return;
+				}
+				mOtherValues = new String[MusicKey.values().length];
+			}
+			mOtherValues[key.ordinal()] = value;
+			break;
+		}
+		mName = null;
+	}
+
+	/**
+	 * @see Music#mComplete
+	 */
+	public boolean isComplete()
+	{
+		return mComplete;
+	}
+
+	void setComplete(boolean complete)
+	{
+		mComplete = complete;
+	}
+
+	/**
+	 * Completes a music which only has the display fields loaded, using the
+	 * metadata of the same music loaded in full.
+	 */
+	void complete(Music full)
+	{
+		for (MusicKey key : MusicKey.values())
+		{
+			String value = full.get(key);
+			if(value != null)
+			{
+				set(key, value);
+			}
+		}
+		mComplete = true;
+	}
+
+	/**
+	 * Time of the last hit object in milliseconds, -1 if unknown
+	 */
+	public long getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * Time the mapset was first imported in milliseconds since the epoch, -1 if unknown
+	 */
+	public long getAddedAt()
+	{
+		return mAddedAt;
+	}
+
+	void setAddedAt(long addedAt)
+	{
+		mAddedAt = addedAt;
+	}
+
+	/**
+	 * Parses a time, -1 if unknown
+	 */
+	private static long parseLong(String value)
+	{
+		if(value != null)
+		{
+			try
+			{
+				return Long.parseLong(value);
+			}
+			catch (NumberFormatException e)
+			{
+				// Treated as unknown
+			}
+		}
+
+		return -1;
 	}
 
 	public static String popFromMap(Map<String, String> map, String key)
@@ -113,7 +319,18 @@ public class Music
 	 */
 	public String getName()
 	{
-		return getArtist() + " - " + mMetadata.get("Title") + " (" + getAudioFileName() + ")";
+		String name = mName;
+		if(name == null)
+		{
+			name = getArtist() + " - " + mTitle + " (" + getAudioFileName() + ")";
+			mName = name;
+		}
+		return name;
+	}
+
+	public String getTitle()
+	{
+		return mTitle;
 	}
 
 	/**
@@ -121,7 +338,7 @@ public class Music
 	 */
 	public String getArtist()
 	{
-		return mMetadata.get("Artist");
+		return mArtist;
 	}
 
 	/**
@@ -129,7 +346,15 @@ public class Music
 	 */
 	public String getAudioFileName()
 	{
-		return mMetadata.get("AudioFilename");
+		return mAudioFileName;
+	}
+
+	/**
+	 * Creator of the beatmap
+	 */
+	public String getCreator()
+	{
+		return mCreator;
 	}
 
 	/**
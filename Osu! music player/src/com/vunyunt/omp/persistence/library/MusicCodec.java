@@ -0,0 +1,119 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Encodes the stored data of a music into a single compact binary payload.
+ *
+ * Only the keys of {@link MusicCodec#KEYS} are kept, other beatmap header keys
+ * (e.g. StackLeniency, PreviewTime) are dropped. The payload starts with a bit mask
+ * of the keys present, followed by their values in the order of KEYS. The
+ * {@link Music#DISPLAY_FIELDS} come first, so that a music can be decoded for
+ * display without reading the rest of the payload.
+ *
+ * @author vun
+ *
+ */
+public class MusicCodec
+{
+	private static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Keys stored, display fields first. Never reorder, append only.
+	 */
+	private static final String[] KEYS = new String[]
+	{
+		Music.FIELD_ID, Music.FIELD_FOLDER, Music.FIELD_BEATMAP_FILENAME, "Title", "Artist", "AudioFilename",
+		"TitleUnicode", "ArtistUnicode", "Creator", "Version", "Source", "Tags", "BeatmapID", "BeatmapSetID",
+		Music.KEY_LENGTH, Music.KEY_ADDED_AT
+	};
+
+	/**
+	 * Amount of keys at the start of {@link MusicCodec#KEYS} which are display fields
+	 */
+	private static final int DISPLAY_KEY_COUNT = 6;
+
+	/**
+	 * Encodes the given music
+	 */
+	public static BytesRef encode(Music music)
+	{
+		Map<String, String> data = music.serializeToMap();
+
+		int mask = 0;
+		for(int i = 0; i < KEYS.length; i++)
+		{
+			if(data.get(KEYS[i]) != null)
+			{
+				mask |= 1 << i;
+			}
+		}
+
+		GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(256);
+		try
+		{
+			out.writeByte(FORMAT_VERSION);
+			out.writeVInt(mask);
+			for(int i = 0; i < KEYS.length; i++)
+			{
+				if((mask & (1 << i)) != 0)
+				{
+					out.writeString(data.get(KEYS[i]));
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// Not thrown when writing to memory
+			throw new IllegalStateException(e);
+		}
+
+		return new BytesRef(out.getBytes(), 0, out.getPosition());
+	}
+
+	/**
+	 * Decodes a music encoded with {@link MusicCodec#encode(Music)}
+	 *
+	 * @param payload	Encoded music
+	 * @param full		Decodes all keys if true, only the {@link Music#DISPLAY_FIELDS} otherwise
+	 * @return The music, marked as not complete unless fully decoded
+	 */
+	public static Music decode(BytesRef payload, boolean full)
+	{
+		ByteArrayDataInput in = new ByteArrayDataInput(payload.bytes, payload.offset, payload.length);
+		byte version = in.readByte();
+		if(version != FORMAT_VERSION)
+		{
+			throw new IllegalArgumentException("Unknown music payload version " + version);
+		}
+
+		int mask = in.readVInt();
+		int count = full ? KEYS.length : DISPLAY_KEY_COUNT;
+		Map<String, String> data = new HashMap<>();
+		try
+		{
+			for(int i = 0; i < count; i++)
+			{
+				if((mask & (1 << i)) != 0)
+				{
+					data.put(KEYS[i], in.readString());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// Not thrown when reading from memory
+			throw new IllegalStateException(e);
+		}
+
+		Music music = new Music(data);
+		music.setComplete(full);
+		return music;
+	}
+}
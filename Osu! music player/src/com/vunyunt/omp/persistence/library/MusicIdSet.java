@@ -0,0 +1,177 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * A compact set of music IDs held in memory.
+ *
+ * IDs are stored as UTF-8 bytes in a {@link BytesRefHash}, which keeps all of them
+ * in a few large byte blocks instead of one String object each. As the hash does
+ * not support removal, removed IDs are kept in a (small) separate set.
+ *
+ * Thread safe. IDs are spread over several stripes by hash, each with its own lock,
+ * so that concurrent importers rarely wait for each other.
+ *
+ * @author vun
+ *
+ */
+public class MusicIdSet
+{
+	private static final int STRIPE_COUNT = 16;
+
+	private static class Stripe
+	{
+		private BytesRefHash mIds = new BytesRefHash();
+
+		/**
+		 * IDs removed after they are added to {@link Stripe#mIds}
+		 */
+		private Set<String> mRemoved = new HashSet<>();
+	}
+
+	private Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+	public MusicIdSet()
+	{
+		for(int i = 0; i < STRIPE_COUNT; i++)
+		{
+			mStripes[i] = new Stripe();
+		}
+	}
+
+	private Stripe stripeOf(BytesRef id)
+	{
+		return mStripes[(id.hashCode() & 0x7fffffff) % STRIPE_COUNT];
+	}
+
+	/**
+	 * Loads the IDs of all live documents in the index.
+	 * Reads the terms of the ID field, which is a single pass over the term dictionary,
+	 * instead of loading any stored field.
+	 *
+	 * @throws IOException
+	 */
+	public static MusicIdSet load(IndexSearcher searcher) throws IOException
+	{
+		MusicIdSet set = new MusicIdSet();
+		PostingsEnum postings = null;
+
+		for (LeafReaderContext ctx : searcher.getIndexReader().leaves())
+		{
+			LeafReader leaf = ctx.reader();
+			Terms terms = leaf.terms(Music.FIELD_ID);
+			if(terms == null)
+			{
+				continue;
+			}
+
+			Bits liveDocs = leaf.getLiveDocs();
+			TermsEnum te = terms.iterator();
+			BytesRef term;
+			while((term = te.next()) != null)
+			{
+				if(liveDocs == null)
+				{
+					set.add(term);
+					continue;
+				}
+
+				// Deleted documents keep their terms until merged away
+				postings = te.postings(postings, PostingsEnum.NONE);
+				int doc;
+				while((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+				{
+					if(liveDocs.get(doc))
+					{
+						set.add(term);
+						break;
+					}
+				}
+			}
+		}
+
+		return set;
+	}
+
+	private void add(BytesRef id)
+	{
+		Stripe stripe = stripeOf(id);
+		synchronized (stripe)
+		{
+			stripe.mIds.add(id);
+		}
+	}
+
+	public boolean contains(String id)
+	{
+		BytesRef bytes = new BytesRef(id);
+		Stripe stripe = stripeOf(bytes);
+		synchronized (stripe)
+		{
+			return stripe.mIds.find(bytes) >= 0 && !stripe.mRemoved.contains(id);
+		}
+	}
+
+	public void add(String id)
+	{
+		BytesRef bytes = new BytesRef(id);
+		Stripe stripe = stripeOf(bytes);
+		synchronized (stripe)
+		{
+			stripe.mIds.add(bytes);
+			stripe.mRemoved.remove(id);
+		}
+	}
+
+	public void remove(String id)
+	{
+		BytesRef bytes = new BytesRef(id);
+		Stripe stripe = stripeOf(bytes);
+		synchronized (stripe)
+		{
+			if(stripe.mIds.find(bytes) >= 0)
+			{
+				stripe.mRemoved.add(id);
+			}
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Stripe stripe : mStripes)
+		{
+			synchronized (stripe)
+			{
+				size += stripe.mIds.size() - stripe.mRemoved.size();
+			}
+		}
+
+		return size;
+	}
+
+	public void clear()
+	{
+		for (Stripe stripe : mStripes)
+		{
+			synchronized (stripe)
+			{
+				stripe.mIds.clear();
+				stripe.mRemoved.clear();
+			}
+		}
+	}
+}
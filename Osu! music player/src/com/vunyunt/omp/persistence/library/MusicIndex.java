@@ -3,16 +3,22 @@ package com.vunyunt.omp.persistence.library;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.function.BiConsumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.apache.log4j.Logger;
@@ -20,28 +26,53 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherLifetimeManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.QueryBuilder;
 
-public class MusicIndex
+import com.vunyunt.omp.persistence.AppConfig;
+
+/**
+ * Lucene index of the musics of a library.
+ *
+ * Thread safe. Musics can be added, updated and checked for existence from many threads
+ * at once without blocking each other, and searches run concurrently with all of them.
+ * Commits, removals, clearing and closing are serialized with each other only.
+ *
+ * @author vun
+ *
+ */
+public class MusicIndex implements SearchBackend
 {
 	private static final Logger LOGGER = Logger.getLogger(MusicIndex.class);
 
@@ -49,23 +80,351 @@ public class MusicIndex
 	private Directory mIndex;
 	private IndexWriter mWriter;
 
+	/**
+	 * Shares one searcher between all queries. Refreshed from the writer after each commit.
+	 */
+	private SearcherManager mSearcherManager;
+
+	/**
+	 * Searchers cursors page through, so that all pages of a search come from the index
+	 * as of its first page, even if a commit changes the index in between. Searchers
+	 * are kept for {@link MusicIndex#PINNED_SEARCHER_SECONDS} after they are replaced.
+	 */
+	private SearcherLifetimeManager mPinnedSearchers = new SearcherLifetimeManager();
+
+	/**
+	 * Time a searcher stays available to cursors once a newer searcher is pinned
+	 */
+	private static final double PINNED_SEARCHER_SECONDS = 300;
+
+	/**
+	 * First pages of recent searches, valid as long as the searcher is not refreshed
+	 */
+	private QueryCache mQueryCache;
+
+	/**
+	 * Key of the schema version in the commit data of the index
+	 */
+	private static final String COMMIT_SCHEMA_VERSION = "SchemaVersion";
+
+	/**
+	 * Key of the n-gram subfields flag in the commit data of the index, since SCHEMA_COMPACT
+	 */
+	private static final String COMMIT_NGRAM_FIELDS = "NGramFields";
+
+	/**
+	 * Schema with every metadata key as a stored field, searched with wildcard queries
+	 */
+	public static final int SCHEMA_PLAIN = 1;
+
+	/**
+	 * SCHEMA_PLAIN with the n-gram subfields of {@link NGramSearch}
+	 */
+	public static final int SCHEMA_NGRAM = 2;
+
+	/**
+	 * Schema with a single binary stored field, see {@link MusicCodec}.
+	 * Only the searched fields are indexed, none of them is stored.
+	 * The n-gram subfields are indexed if {@link MusicIndex#COMMIT_NGRAM_FIELDS} is true.
+	 */
+	public static final int SCHEMA_COMPACT = 3;
+
+	/**
+	 * SCHEMA_COMPACT with the facet fields of {@link Facets}
+	 */
+	public static final int SCHEMA_FACETS = 4;
+
+	/**
+	 * SCHEMA_FACETS with the sort fields of {@link MusicSort}.
+	 * Earlier schemas lack the length of the musics, which is only read from the beatmaps.
+	 */
+	public static final int SCHEMA_SORT = 5;
+
+	/**
+	 * Schema written by this index
+	 */
+	private static final int SCHEMA_CURRENT = SCHEMA_SORT;
+
+	/**
+	 * Stored field holding the payload encoded by {@link MusicCodec}
+	 */
+	private static final String FIELD_PAYLOAD = "Payload";
+
+	/**
+	 * Stored fields loaded to display a music, either the payload or the display fields
+	 * of the schemas before SCHEMA_COMPACT
+	 */
+	private static final Set<String> LOAD_DISPLAY_FIELDS;
+	static
+	{
+		Set<String> fields = new HashSet<>(Music.DISPLAY_FIELDS);
+		fields.add(FIELD_PAYLOAD);
+		LOAD_DISPLAY_FIELDS = Collections.unmodifiableSet(fields);
+	}
+
+	/**
+	 * Schema version of the last commit. Indexes without a version are SCHEMA_PLAIN.
+	 */
+	private volatile int mSchemaVersion;
+
+	/**
+	 * True if the last commit indexed the n-gram subfields
+	 */
+	private volatile boolean mHasNGramFields;
+
+	/**
+	 * Search with n-gram subfields instead of wildcard queries
+	 */
+	private boolean mNGramSearch;
+
+	/**
+	 * Amount of uncommitted changes after which {@link MusicIndex#isCommitDue()} is true
+	 */
+	private int mCommitEveryChanges;
+
+	/**
+	 * Time after which uncommitted changes make {@link MusicIndex#isCommitDue()} true
+	 */
+	private long mCommitIntervalNanos;
+
+	/**
+	 * Musics added or updated and musics removed since the last commit
+	 */
+	private AtomicInteger mUncommittedChanges = new AtomicInteger();
+	private volatile long mLastCommitTime = System.nanoTime();
+
+	/**
+	 * Serializes commits, removals and the other operations which must not interleave with a commit
+	 */
+	private final Object mCommitLock = new Object();
+
+	private volatile boolean mClosed = false;
+
 	/**
 	 * Instantiate a music index using the given index file
 	 *
-	 * @param indexFile Index file for the music index
+	 * @param indexFile	Index file for the music index
+	 * @param config	Configuration of the search and of the index writer
 	 * @throws IOException
 	 */
-	protected MusicIndex(String indexFile) throws IOException
+	public MusicIndex(String indexFile, AppConfig config) throws IOException
 	{
-		mAnalyzer = new SimpleAnalyzer();
+		mNGramSearch = config.ngramSearch;
+		mCommitEveryChanges = config.indexCommitEveryChanges;
+		mCommitIntervalNanos = TimeUnit.SECONDS.toNanos(config.indexCommitIntervalSeconds);
+		mQueryCache = new QueryCache(config.searchCacheSize);
+		mAnalyzer = NGramSearch.wrapAnalyzer(new SimpleAnalyzer());
 		mIndex = new MMapDirectory(Paths.get(indexFile));
-		mWriter = new IndexWriter(mIndex, new IndexWriterConfig(mAnalyzer));
+		mWriter = new IndexWriter(mIndex, createWriterConfig(config));
+		mSearcherManager = new SearcherManager(mWriter, null);
+
+		mSchemaVersion = SCHEMA_PLAIN;
+		String ngramFields = null;
+		Iterable<Map.Entry<String, String>> commitData = mWriter.getLiveCommitData();
+		if(commitData != null)
+		{
+			for (Map.Entry<String, String> e : commitData)
+			{
+				if(COMMIT_SCHEMA_VERSION.equals(e.getKey()))
+				{
+					mSchemaVersion = Integer.parseInt(e.getValue());
+				}
+				else if(COMMIT_NGRAM_FIELDS.equals(e.getKey()))
+				{
+					ngramFields = e.getValue();
+				}
+			}
+		}
+		mHasNGramFields = ngramFields != null ? Boolean.parseBoolean(ngramFields) : mSchemaVersion == SCHEMA_NGRAM;
+	}
+
+	/**
+	 * Configures the index writer.
+	 * Documents are buffered in memory up to the configured size, then flushed to a new
+	 * segment. Segments are merged on background threads, so that flushes and commits
+	 * do not wait for merges.
+	 */
+	private IndexWriterConfig createWriterConfig(AppConfig config)
+	{
+		ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+		// The index is small, merges do not need to be throttled
+		mergeScheduler.disableAutoIOThrottle();
+
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(10);
+
+		IndexWriterConfig writerConfig = new IndexWriterConfig(mAnalyzer);
+		writerConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
+		writerConfig.setRAMBufferSizeMB(config.indexRamBufferMB);
+		writerConfig.setMergeScheduler(mergeScheduler);
+		writerConfig.setMergePolicy(mergePolicy);
+		return writerConfig;
+	}
+
+	/**
+	 * Schema version of the last commit, see SCHEMA_*
+	 */
+	public int getSchemaVersion()
+	{
+		return mSchemaVersion;
+	}
+
+	/**
+	 * Checks if the index has no music
+	 */
+	public boolean isEmpty()
+	{
+		return mWriter.numDocs() == 0;
+	}
+
+	/**
+	 * Checks if the index was written with the schema this index writes
+	 */
+	private boolean isSchemaCurrent()
+	{
+		return mSchemaVersion == SCHEMA_CURRENT && mHasNGramFields == mNGramSearch;
 	}
 
 	/**
-	 * A pending list of music to be added to the index
+	 * Reindexes all musics if the index was written with another schema,
+	 * e.g. before n-gram search was enabled or with one stored field per key.
+	 * Logs the index size and full load time before and after.
+	 *
+	 * @throws IOException
+	 */
+	public void upgradeSchema() throws IOException
+	{
+		synchronized (mCommitLock)
+		{
+			if(!isSchemaCurrent())
+			{
+				reindex();
+			}
+		}
+	}
+
+	private void reindex() throws IOException
+	{
+		if(mWriter.numDocs() == 0)
+		{
+			// Nothing to reindex, the next commit writes the current schema
+			mSchemaVersion = SCHEMA_CURRENT;
+			mHasNGramFields = mNGramSearch;
+			return;
+		}
+
+		long sizeBefore = getIndexSize();
+		long startTime = System.nanoTime();
+		List<Music> musics = getAllMusics();
+		long loadTimeBefore = System.nanoTime() - startTime;
+		LOGGER.info("Reindexing " + musics.size() + " musics from schema " + mSchemaVersion + " to " + SCHEMA_CURRENT
+				+ (mNGramSearch ? " with" : " without") + " n-gram fields...");
+
+		// Written in batches to bound the pending musics, but committed once so that
+		// the index is never left half migrated
+		for (Music m : musics)
+		{
+			updateMusic(m);
+			if(mPendingMusics.size() >= mCommitEveryChanges)
+			{
+				dropPending(writePending());
+			}
+		}
+		commit();
+
+		// Reclaims the space of the replaced documents, merging the many small segments
+		// written by the reindex at the same time
+		mWriter.forceMerge(1);
+		commit();
+		LOGGER.info("Reindexed in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+
+		long loadStartTime = System.nanoTime();
+		forEachMusic(LOAD_BATCH_SIZE, new Consumer<List<Music>>()
+		{
+			@Override
+			public void accept(List<Music> batch)
+			{
+				// Only measures the load
+			}
+		});
+		long loadTimeAfter = System.nanoTime() - loadStartTime;
+
+		LOGGER.info("Index size " + sizeBefore / 1024 + "KB -> " + getIndexSize() / 1024 + "KB, full load "
+				+ loadTimeBefore / 1000000 + "ms -> " + loadTimeAfter / 1000000 + "ms");
+	}
+
+	/**
+	 * Total size of the index files, in bytes
+	 *
+	 * @throws IOException
+	 */
+	private long getIndexSize() throws IOException
+	{
+		long size = 0;
+		for (String file : mIndex.listAll())
+		{
+			try
+			{
+				size += mIndex.fileLength(file);
+			}
+			catch (IOException e)
+			{
+				// Deleted by a merge meanwhile
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * A pending list of music to be added to the index.
+	 * Musics stay in it until they are committed and visible to searches.
+	 */
+	private ConcurrentMap<String, Music> mPendingMusics = new ConcurrentHashMap<>();
+
+	/**
+	 * IDs of all indexed musics, only loaded while importing.
+	 * Existence checks are answered from memory instead of querying the index.
+	 */
+	private volatile MusicIdSet mImportIds;
+
+	/**
+	 * Starts an import. Loads the IDs of all indexed musics into memory with a
+	 * single pass over the index, so that {@link MusicIndex#exists(Music)} does not
+	 * query the index for every music imported.
+	 *
+	 * @throws IOException
 	 */
-	private Map<String, Music> mPendingMusics = new HashMap<>();
+	public void beginImport() throws IOException
+	{
+		long startTime = System.nanoTime();
+		MusicIdSet ids;
+
+		// No commit may happen between loading the IDs and publishing them
+		synchronized (mCommitLock)
+		{
+			IndexSearcher searcher = mSearcherManager.acquire();
+			try
+			{
+				ids = MusicIdSet.load(searcher);
+			}
+			finally
+			{
+				mSearcherManager.release(searcher);
+			}
+			mImportIds = ids;
+		}
+
+		LOGGER.info("Loaded " + ids.size() + " music IDs in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
+
+	/**
+	 * Ends an import and frees the IDs loaded by {@link MusicIndex#beginImport()}
+	 */
+	public void endImport()
+	{
+		mImportIds = null;
+	}
 
 	/**
 	 * Adds a new music to the index.
@@ -76,52 +435,158 @@ public class MusicIndex
 	 */
 	public boolean addNewMusic(Music music)
 	{
-		if(!exists(music))
+		// Claimed in the pending musics first: of several threads adding the same music at
+		// once, only one claims it. Pending musics are only dropped once indexed, so a music
+		// committed meanwhile is found indexed below and the claim is given back.
+		if(mPendingMusics.putIfAbsent(music.getId(), music) != null)
+		{
+			return false;
+		}
+
+		if(isIndexed(music.getId()))
 		{
-			mPendingMusics.put(music.getId(), music);
-			return true;
+			mPendingMusics.remove(music.getId(), music);
+			return false;
 		}
 
-		return false;
+		mUncommittedChanges.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Adds a music to the index, replacing the indexed music with the same ID if there is one.
+	 * No change is made to the index until commit() is called.
+	 *
+	 * @param music Music to be added or updated
+	 */
+	public void updateMusic(Music music)
+	{
+		mPendingMusics.put(music.getId(), music);
+		mUncommittedChanges.incrementAndGet();
+	}
+
+	/**
+	 * Checks if enough changes are made, or if changes are left uncommitted for long enough,
+	 * that the index should be committed. Long imports commit whenever this is true, so that
+	 * the pending musics stay bounded and a crash loses little work.
+	 */
+	public boolean isCommitDue()
+	{
+		int changes = mUncommittedChanges.get();
+		return changes >= mCommitEveryChanges
+				|| (changes > 0 && System.nanoTime() - mLastCommitTime >= mCommitIntervalNanos);
 	}
 
 	/**
-	 * Commit all pending music into the index
+	 * Commit all pending music into the index.
+	 * Musics added while committing are either part of this commit or left pending for the next.
 	 *
 	 * @throws IOException
 	 */
 	public void commit() throws IOException
 	{
-		for (String k : mPendingMusics.keySet())
+		synchronized (mCommitLock)
 		{
-			Music m = mPendingMusics.get(k);
+			long startTime = System.nanoTime();
+			int changes = mUncommittedChanges.getAndSet(0);
+			Map<String, Music> written = writePending();
+
+			Map<String, String> commitData = new HashMap<>();
+			commitData.put(COMMIT_SCHEMA_VERSION, Integer.toString(SCHEMA_CURRENT));
+			commitData.put(COMMIT_NGRAM_FIELDS, Boolean.toString(mNGramSearch));
+			mWriter.setLiveCommitData(commitData.entrySet());
+			mWriter.commit();
+			mSchemaVersion = SCHEMA_CURRENT;
+			mHasNGramFields = mNGramSearch;
+			mLastCommitTime = System.nanoTime();
+			mSearcherManager.maybeRefresh();
+			mQueryCache.clear();
+			mPinnedSearchers.prune(new SearcherLifetimeManager.PruneByAge(PINNED_SEARCHER_SECONDS));
+
+			// Only dropped once searchable, so that exists() finds them all along
+			dropPending(written);
+
+			LOGGER.debug("Committed " + changes + " changes in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+		}
+	}
+
+	/**
+	 * Hands the pending musics over to the index writer, which buffers them and flushes
+	 * them to disk as needed. They are only visible once committed.
+	 *
+	 * @return The musics written, to be dropped from the pending musics with {@link MusicIndex#dropPending(Map)}
+	 * @throws IOException
+	 */
+	private Map<String, Music> writePending() throws IOException
+	{
+		Map<String, Music> written = new HashMap<>();
+		MusicIdSet importIds = mImportIds;
+		for (Map.Entry<String, Music> e : mPendingMusics.entrySet())
+		{
+			Music m = e.getValue();
 
 			Document doc = new Document();
 
+			// ID is added as string field as it needs to be matched exactly.
+			// It is stored in the payload with the other data.
+			doc.add(new StringField(Music.FIELD_ID, m.getId(), Field.Store.NO));
+			doc.add(new StoredField(FIELD_PAYLOAD, MusicCodec.encode(m)));
+
 			Map<String, String> musicData = m.serializeToMap();
-			// ID is added as string field as it needs to be matched exactly
-			doc.add(new StringField(Music.FIELD_ID, Music.popFromMap(musicData, Music.FIELD_ID), Field.Store.YES));
-			musicData.forEach(new BiConsumer<String, String>()
+			for (String field : NGramSearch.SEARCH_FIELDS)
 			{
-				@Override
-				public void accept(String k, String v)
+				String value = musicData.get(field);
+				if(value != null)
 				{
-					doc.add(new TextField(k, v, Field.Store.YES));
+					doc.add(new TextField(field, value, Field.Store.NO));
+					if(mNGramSearch)
+					{
+						NGramSearch.addFields(doc, field, value);
+					}
 				}
-			});
+			}
+			Facets.addFields(doc, musicData);
+			MusicSort.addFields(doc, musicData);
 
 			mWriter.updateDocument(new Term(Music.FIELD_ID, m.getId()), doc);
+			written.put(e.getKey(), m);
+
+			// Added before the music leaves the pending musics
+			if(importIds != null)
+			{
+				importIds.add(e.getKey());
+			}
 		}
 
-		mWriter.commit();
-		mPendingMusics.clear();
+		return written;
+	}
+
+	/**
+	 * Drops written musics from the pending musics, unless they were updated again meanwhile
+	 */
+	private void dropPending(Map<String, Music> written)
+	{
+		for (Map.Entry<String, Music> e : written.entrySet())
+		{
+			mPendingMusics.remove(e.getKey(), e.getValue());
+		}
 	}
 
 	/**
 	 * Converts a Lucene document to a Music object
+	 *
+	 * @param full	True if all stored fields of the document are loaded, false if only
+	 * 				{@link MusicIndex#LOAD_DISPLAY_FIELDS} are
 	 */
-	private Music documentToMusic(Document doc)
+	private Music documentToMusic(Document doc, boolean full)
 	{
+		BytesRef payload = doc.getBinaryValue(FIELD_PAYLOAD);
+		if(payload != null)
+		{
+			return MusicCodec.decode(payload, full);
+		}
+
+		// Written with a schema before SCHEMA_COMPACT, one stored field per key
 		Map<String, String> musicData = new HashMap<String, String>();
 		List<IndexableField> fields = doc.getFields();
 		fields.forEach(new Consumer<IndexableField>()
@@ -132,7 +597,9 @@ public class MusicIndex
 				musicData.put(f.name(), f.stringValue());
 			}
 		});
-		return new Music(musicData);
+		Music music = new Music(musicData);
+		music.setComplete(full);
+		return music;
 	}
 
 	/**
@@ -142,16 +609,32 @@ public class MusicIndex
 	 */
 	public boolean exists(Music music)
 	{
-		if(mPendingMusics.containsKey(music.getId()))
+		return mPendingMusics.containsKey(music.getId()) || isIndexed(music.getId());
+	}
+
+	/**
+	 * Check if a music with the given ID is committed to this index, or written while importing
+	 */
+	private boolean isIndexed(String id)
+	{
+		MusicIdSet importIds = mImportIds;
+		if(importIds != null)
 		{
-			return true;
+			return importIds.contains(id);
 		}
 
 		try
 		{
-			IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(mIndex));
-			TopDocs result = searcher.search(new TermQuery(new Term(Music.FIELD_ID, music.getId())), 1);
-			return result.totalHits == 1;
+			IndexSearcher searcher = mSearcherManager.acquire();
+			try
+			{
+				TopDocs result = searcher.search(new TermQuery(new Term(Music.FIELD_ID, id)), 1);
+				return result.totalHits == 1;
+			}
+			finally
+			{
+				mSearcherManager.release(searcher);
+			}
 		}
 		catch(IOException e)
 		{
@@ -167,57 +650,306 @@ public class MusicIndex
 	 */
 	public List<Music> getAllMusics() throws IOException
 	{
-		IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(mIndex));
-
 		List<Music> allMusics = new ArrayList<>();
+		forEachMusic(LOAD_BATCH_SIZE, new Consumer<List<Music>>()
+		{
+			@Override
+			public void accept(List<Music> batch)
+			{
+				allMusics.addAll(batch);
+			}
+		});
 
-		MatchAllDocsQuery q = new MatchAllDocsQuery();
-		TopDocs docs = searcher.search(q, Integer.MAX_VALUE);
+		return allMusics;
+	}
+
+	/**
+	 * Default amount of musics handed over at once by {@link MusicIndex#forEachMusic(int, Consumer)}
+	 */
+	public static final int LOAD_BATCH_SIZE = 500;
 
-		for (ScoreDoc doc : docs.scoreDocs)
+	/**
+	 * Streams all music in the index to the given consumer, in batches.
+	 *
+	 * Walks the live documents of each segment directly instead of collecting hits,
+	 * so only one batch of musics is held at once. Each batch is a new list owned by
+	 * the consumer. The musics are read from a single point in time view of the index,
+	 * changes made meanwhile are not visible.
+	 *
+	 * @param batchSize	Maximum amount of musics per batch
+	 * @param consumer	Called on the calling thread with each batch
+	 * @throws IOException
+	 */
+	public void forEachMusic(int batchSize, Consumer<List<Music>> consumer) throws IOException
+	{
+		IndexSearcher searcher = mSearcherManager.acquire();
+		try
+		{
+			List<Music> batch = new ArrayList<>(batchSize);
+			for (LeafReaderContext ctx : searcher.getIndexReader().leaves())
+			{
+				LeafReader leaf = ctx.reader();
+				Bits liveDocs = leaf.getLiveDocs();
+				for (int doc = 0; doc < leaf.maxDoc(); doc++)
+				{
+					if(liveDocs != null && !liveDocs.get(doc))
+					{
+						continue;
+					}
+
+					batch.add(this.documentToMusic(leaf.document(doc), true));
+					if(batch.size() >= batchSize)
+					{
+						consumer.accept(batch);
+						batch = new ArrayList<>(batchSize);
+					}
+				}
+			}
+
+			if(!batch.isEmpty())
+			{
+				consumer.accept(batch);
+			}
+		}
+		finally
 		{
-			Document d = searcher.doc(doc.doc);
-			allMusics.add(this.documentToMusic(d));
+			mSearcherManager.release(searcher);
 		}
+	}
 
-		return allMusics;
+	/**
+	 * Searches the index
+	 *
+	 * @param searchQuery	Text to search for
+	 * @param pageSize		Amount of hits fetched at once
+	 * @return A cursor over the hits, fetching the first page when requested
+	 */
+	public SearchCursor search(String searchQuery, int pageSize)
+	{
+		return search(searchQuery, null, null, MusicSort.RELEVANCE, pageSize);
 	}
 
-	public List<Music> search(String searchQuery, int resultsToShow) throws IOException
+	/**
+	 * Searches the index, only among the musics having a facet value, in the given order.
+	 * Browses all musics (having the facet value) if the text is empty.
+	 *
+	 * @param searchQuery		Text to search for
+	 * @param facetDimension	Dimension of the facet value, one of {@link Facets#DIMENSIONS}, null for all musics
+	 * @param facetValue		Facet value the musics must have, null for all musics
+	 * @param sort				Order of the hits
+	 * @param pageSize			Amount of hits fetched at once
+	 * @return A cursor over the hits, fetching the first page when requested
+	 */
+	@Override
+	public SearchCursor search(String searchQuery, String facetDimension, String facetValue, MusicSort sort, int pageSize)
 	{
-		IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(mIndex));
+		Query q = null;
+		String key = QueryCache.normalize(searchQuery);
+		try
+		{
+			q = key.isEmpty() ? null : buildQuery(searchQuery);
+		}
+		catch (ParseException e)
+		{
+			LOGGER.error(this.getClass().getName() + ": Unable to parse query");
+			LOGGER.debug(e);
+		}
 
-		List<Music> matches = new ArrayList<Music>();
+		if(facetDimension != null && facetValue != null)
+		{
+			Query drillDown = Facets.drillDown(facetDimension, facetValue);
+			if(key.isEmpty())
+			{
+				q = drillDown;
+			}
+			else if(q != null)
+			{
+				q = new BooleanQuery.Builder().add(q, Occur.MUST).add(drillDown, Occur.FILTER).build();
+			}
+			key += "\u0000" + facetDimension + "\u0000" + facetValue;
+		}
+		else if(key.isEmpty())
+		{
+			q = new MatchAllDocsQuery();
+		}
+		key += "\u0000" + sort.name();
 
-		// Old searching method, only search one field
-		// Query q = new QueryBuilder(mAnalyzer).createPhraseQuery(FIELD_NAME, searchQuery);
+		return new IndexSearchCursor(this, q, key, sort.getSort(), pageSize);
+	}
 
+	/**
+	 * Counts the musics having each value of a facet dimension
+	 *
+	 * @param dimension	One of {@link Facets#DIMENSIONS}
+	 * @param limit		Maximum amount of values returned
+	 * @return The most frequent values, by descending count then by value
+	 * @throws IOException
+	 */
+	@Override
+	public List<FacetCount> getFacetCounts(String dimension, int limit) throws IOException
+	{
+		IndexSearcher searcher = mSearcherManager.acquire();
 		try
 		{
-			StringBuilder querySb = new StringBuilder(searchQuery.trim());
-			querySb.insert(0, "*");
-			querySb.append("*");
-			String finalQuery = querySb.toString();
-			finalQuery.replace(" ", "* *");
-			MultiFieldQueryParser parser = new MultiFieldQueryParser(
-					new String[]{"Title", "AudioFilename", "Artist", "Tags"}, mAnalyzer);
-			parser.setAllowLeadingWildcard(true);
-			Query q = parser.parse(finalQuery);
-			TopDocs docs = searcher.search(q, resultsToShow);
+			return Facets.count(searcher, dimension, null, limit);
+		}
+		finally
+		{
+			mSearcherManager.release(searcher);
+		}
+	}
 
+	/**
+	 * Nothing to do, the searcher is refreshed by each commit
+	 */
+	@Override
+	public void refresh()
+	{
+	}
+
+	/**
+	 * Nothing to do, the searcher is refreshed by each commit
+	 */
+	@Override
+	public void update(Map<String, Music> changes)
+	{
+	}
+
+	/**
+	 * Pins the current searcher for an {@link IndexSearchCursor}, which fetches all its pages from it
+	 *
+	 * @return Version of the searcher, passed to {@link MusicIndex#searchAfter}
+	 * @throws IOException
+	 */
+	long pinSearcher() throws IOException
+	{
+		IndexSearcher searcher = mSearcherManager.acquire();
+		try
+		{
+			return mPinnedSearchers.record(searcher);
+		}
+		finally
+		{
+			mSearcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * Fetches a page of hits for {@link IndexSearchCursor}, loading only the display fields
+	 *
+	 * The first page is answered from the query cache when the searcher did not change
+	 * since it was cached.
+	 *
+	 * @param pinnedVersion	Version of the searcher pinned for the cursor. The current searcher is used
+	 *						if it is no longer pinned, later pages may then repeat or skip hits.
+	 * @param q			Query to search
+	 * @param key		Normalized search text, facet and sort the query is built from, used as cache key
+	 * @param sort		Sort of the hits, null to sort by relevance
+	 * @param after		Last hit of the previous page, null for the first page
+	 * @param n			Amount of hits to fetch
+	 * @param musics	Receives the music of each hit
+	 * @throws IOException
+	 */
+	TopDocs searchAfter(long pinnedVersion, Query q, String key, Sort sort, ScoreDoc after, int n, List<Music> musics)
+			throws IOException
+	{
+		IndexSearcher pinned = mPinnedSearchers.acquire(pinnedVersion);
+		if(pinned == null)
+		{
+			LOGGER.debug("Searcher of a search was released, searching the current index instead");
+		}
+
+		IndexSearcher searcher = pinned != null ? pinned : mSearcherManager.acquire();
+		try
+		{
+			long version = ((DirectoryReader) searcher.getIndexReader()).getVersion();
+			if(after == null)
+			{
+				TopDocs cached = mQueryCache.get(key, version, n, musics);
+				if(cached != null)
+				{
+					return cached;
+				}
+			}
+
+			// Hits of sorted searches are FieldDocs, which searchAfter continues from
+			TopDocs docs = sort == null ? searcher.searchAfter(after, q, n) : searcher.searchAfter(after, q, n, sort);
+			int first = musics.size();
 			for(ScoreDoc doc : docs.scoreDocs)
 			{
-				Document d = searcher.doc(doc.doc);
-				matches.add(this.documentToMusic(d));
+				musics.add(this.documentToMusic(searcher.doc(doc.doc, LOAD_DISPLAY_FIELDS), false));
+			}
+
+			if(after == null)
+			{
+				mQueryCache.put(key, version, docs, musics.subList(first, musics.size()));
 			}
+
+			return docs;
 		}
-		catch (ParseException e)
+		finally
 		{
-			LOGGER.error(this.getClass().getName() + ": Unable to parse query");
-			LOGGER.debug(e);
+			if(pinned != null)
+			{
+				mPinnedSearchers.release(pinned);
+			}
+			else
+			{
+				mSearcherManager.release(searcher);
+			}
 		}
+	}
 
-		return matches;
+	/**
+	 * Loads all stored fields of the music with the given ID
+	 *
+	 * @return The music, or null if it is not in the index
+	 * @throws IOException
+	 */
+	public Music getMusic(String id) throws IOException
+	{
+		IndexSearcher searcher = mSearcherManager.acquire();
+		try
+		{
+			TopDocs docs = searcher.search(new TermQuery(new Term(Music.FIELD_ID, id)), 1);
+			if(docs.scoreDocs.length == 0)
+			{
+				return null;
+			}
+
+			return this.documentToMusic(searcher.doc(docs.scoreDocs[0].doc), true);
+		}
+		finally
+		{
+			mSearcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * Builds the query for the given search text
+	 *
+	 * @return The query, or null if nothing can be searched for
+	 * @throws ParseException
+	 */
+	private Query buildQuery(String searchQuery) throws ParseException
+	{
+		if(mNGramSearch)
+		{
+			return NGramSearch.buildQuery(searchQuery);
+		}
+
+		// Old searching method, only search one field
+		// Query q = new QueryBuilder(mAnalyzer).createPhraseQuery(FIELD_NAME, searchQuery);
+
+		// Wildcard search, each word needs to match
+		StringBuilder querySb = new StringBuilder(searchQuery.trim());
+		querySb.insert(0, "*");
+		querySb.append("*");
+		String finalQuery = querySb.toString().replaceAll("\\s+", "* *");
+		MultiFieldQueryParser parser = new MultiFieldQueryParser(NGramSearch.SEARCH_FIELDS, mAnalyzer);
+		parser.setAllowLeadingWildcard(true);
+		parser.setDefaultOperator(QueryParser.Operator.AND);
+		return parser.parse(finalQuery);
 	}
 
 	/**
@@ -228,7 +960,29 @@ public class MusicIndex
 	 */
 	public void remove(Music music) throws IOException
 	{
-		mWriter.deleteDocuments(new TermQuery(new Term(Music.FIELD_ID, music.getId())));
+		remove(music.getId());
+	}
+
+	/**
+	 * Remove the indexed music with the given ID from the index
+	 * This method is asynchronous.
+	 *
+	 * @throws IOException
+	 */
+	public void remove(String id) throws IOException
+	{
+		// A commit writing the music after it is deleted would add it back
+		synchronized (mCommitLock)
+		{
+			mPendingMusics.remove(id);
+			MusicIdSet importIds = mImportIds;
+			if(importIds != null)
+			{
+				importIds.remove(id);
+			}
+			mWriter.deleteDocuments(new TermQuery(new Term(Music.FIELD_ID, id)));
+			mUncommittedChanges.incrementAndGet();
+		}
 	}
 
 	/**
@@ -238,21 +992,68 @@ public class MusicIndex
 	 */
 	public void clear() throws IOException
 	{
-		IndexWriterConfig writerConfig = new IndexWriterConfig(mAnalyzer).setOpenMode(OpenMode.CREATE);
-		mWriter = new IndexWriter(mIndex, writerConfig);
-		mWriter.commit();
+		synchronized (mCommitLock)
+		{
+			// The searcher manager is bound to the writer, so the writer is kept and emptied
+			mPendingMusics.clear();
+			MusicIdSet importIds = mImportIds;
+			if(importIds != null)
+			{
+				importIds.clear();
+			}
+			mWriter.deleteAll();
+			mWriter.commit();
+			mUncommittedChanges.set(0);
+			mLastCommitTime = System.nanoTime();
+			mSearcherManager.maybeRefresh();
+			mQueryCache.clear();
+		}
+	}
+
+	/**
+	 * Cache of the first page of recent searches, e.g. to read its hit and miss counts
+	 */
+	public QueryCache getQueryCache()
+	{
+		return mQueryCache;
 	}
 
+	/**
+	 * Closes the index. Waits for running merges and commits the changes written to the
+	 * index writer; pending musics not committed yet are dropped.
+	 * Does nothing if already closed.
+	 */
 	public void close()
 	{
-		try
-		{
-			mWriter.close();
-		}
-		catch (IOException e)
+		synchronized (mCommitLock)
 		{
-			LOGGER.error("Unable to close index writer");
-			LOGGER.debug(e.getMessage());
+			if(mClosed)
+			{
+				return;
+			}
+			mClosed = true;
+
+			try
+			{
+				mPinnedSearchers.close();
+				mSearcherManager.close();
+				mWriter.close();
+			}
+			catch (IOException e)
+			{
+				LOGGER.error("Unable to close index writer");
+				LOGGER.debug(e.getMessage());
+
+				try
+				{
+					// Releases the write lock, keeping the last commit
+					mWriter.rollback();
+				}
+				catch (IOException e1)
+				{
+					LOGGER.debug(e1.getMessage());
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,66 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Metadata keys kept by a {@link Music}, the same as stored by the index (see
+ * {@link MusicCodec}). Other keys of the beatmap header are dropped when a music is
+ * constructed.
+ *
+ * @author vun
+ *
+ */
+public enum MusicKey
+{
+	TITLE("Title"),
+	TITLE_UNICODE("TitleUnicode"),
+	ARTIST("Artist"),
+	ARTIST_UNICODE("ArtistUnicode"),
+	AUDIO_FILENAME("AudioFilename"),
+	CREATOR("Creator"),
+	VERSION("Version"),
+	SOURCE("Source"),
+	TAGS("Tags"),
+	BEATMAP_ID("BeatmapID"),
+	BEATMAP_SET_ID("BeatmapSetID"),
+	LENGTH(Music.KEY_LENGTH),
+	ADDED_AT(Music.KEY_ADDED_AT);
+
+	private static final Map<String, MusicKey> BY_KEY = new HashMap<>();
+	static
+	{
+		for (MusicKey key : values())
+		{
+			BY_KEY.put(key.mKey, key);
+		}
+	}
+
+	/**
+	 * Key in the beatmap header and in {@link Music#serializeToMap()}
+	 */
+	private String mKey;
+
+	private MusicKey(String key)
+	{
+		mKey = key;
+	}
+
+	/**
+	 * @see MusicKey#mKey
+	 */
+	public String getKey()
+	{
+		return mKey;
+	}
+
+	/**
+	 * Gets the enumerated key of a metadata key
+	 *
+	 * @return The key, or null if it is not kept
+	 */
+	public static MusicKey fromKey(String key)
+	{
+		return BY_KEY.get(key);
+	}
+}
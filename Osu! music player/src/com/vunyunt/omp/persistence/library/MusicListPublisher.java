@@ -0,0 +1,319 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+
+/**
+ * Publishes changes of the music list from background threads to the JavaFX thread.
+ *
+ * Changes are queued and applied by a single pending runnable on the JavaFX thread,
+ * instead of one runnable per music. The changes of a batch are merged first: all
+ * removals are applied with one pass over the list, updated musics replace the
+ * listed ones in place, and additions are applied with one addAll. The list ends up
+ * as if the changes were applied one by one, with few change events per batch.
+ *
+ * @author vun
+ *
+ */
+public class MusicListPublisher
+{
+	/**
+	 * Maximum amount of queued changes applied in one run on the JavaFX thread.
+	 * Remaining changes are applied in the next run, so the UI keeps responding.
+	 */
+	public static final int DEFAULT_MAX_BATCH = 2000;
+
+	private ObservableList<Music> mMusics;
+	private int mMaxBatch;
+
+	private Queue<Change> mChanges = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Set when a flush is scheduled on the JavaFX thread and not yet started
+	 */
+	private AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+
+	private Runnable mFlush = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	/**
+	 * A queued change of the list. Only one of the fields is set.
+	 */
+	private static class Change
+	{
+		private Music mAdded;
+		private Music mUpdated;
+		private Set<String> mRemovedIds;
+		private List<Music> mReplacement;
+	}
+
+	/**
+	 * Changes of the batch being flushed, merged
+	 */
+	private Set<String> mRemoved = new HashSet<>();
+	private Map<String, Music> mUpdated = new HashMap<>();
+	private List<Music> mAdded = new ArrayList<>();
+
+	/**
+	 * IDs of {@link MusicListPublisher#mAdded}, to find additions removed or updated in the same batch
+	 */
+	private Set<String> mAddedIds = new HashSet<>();
+
+	/**
+	 * IDs of the musics in the list, built when a batch updates a music, null otherwise
+	 */
+	private Set<String> mListedIds;
+
+	public MusicListPublisher(ObservableList<Music> musics)
+	{
+		this(musics, DEFAULT_MAX_BATCH);
+	}
+
+	/**
+	 * @param musics	List to publish to. Only modified on the JavaFX thread.
+	 * @param maxBatch	{@link MusicListPublisher#DEFAULT_MAX_BATCH}
+	 */
+	public MusicListPublisher(ObservableList<Music> musics, int maxBatch)
+	{
+		mMusics = musics;
+		mMaxBatch = maxBatch;
+	}
+
+	/**
+	 * Adds a music to the end of the list
+	 */
+	public void add(Music music)
+	{
+		Change c = new Change();
+		c.mAdded = music;
+		enqueue(c);
+	}
+
+	/**
+	 * Adds musics to the end of the list
+	 */
+	public void addAll(Collection<Music> musics)
+	{
+		for (Music m : musics)
+		{
+			Change c = new Change();
+			c.mAdded = m;
+			mChanges.add(c);
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Replaces the music with the same ID in place, or adds it to the end of the list if not listed
+	 */
+	public void update(Music music)
+	{
+		Change c = new Change();
+		c.mUpdated = music;
+		enqueue(c);
+	}
+
+	/**
+	 * Removes the musics with the given IDs from the list
+	 */
+	public void remove(Set<String> ids)
+	{
+		Change c = new Change();
+		c.mRemovedIds = ids;
+		enqueue(c);
+	}
+
+	/**
+	 * Replaces the whole content of the list with a single change.
+	 * Used to start the initial load, which then appends the rest of the index in batches.
+	 */
+	public void replaceAll(List<Music> musics)
+	{
+		Change c = new Change();
+		c.mReplacement = musics;
+		enqueue(c);
+	}
+
+	private void enqueue(Change c)
+	{
+		mChanges.add(c);
+		scheduleFlush();
+	}
+
+	private void scheduleFlush()
+	{
+		if(mFlushScheduled.compareAndSet(false, true))
+		{
+			Platform.runLater(mFlush);
+		}
+	}
+
+	/**
+	 * Applies queued changes on the JavaFX thread
+	 */
+	private void flush()
+	{
+		mFlushScheduled.set(false);
+
+		int applied = 0;
+		Change c;
+		while(applied < mMaxBatch && (c = mChanges.poll()) != null)
+		{
+			applied++;
+			if(c.mAdded != null)
+			{
+				mAdded.add(c.mAdded);
+				mAddedIds.add(c.mAdded.getId());
+			}
+			else if(c.mUpdated != null)
+			{
+				mergeUpdate(c.mUpdated);
+			}
+			else if(c.mRemovedIds != null)
+			{
+				mergeRemoval(c.mRemovedIds);
+			}
+			else if(c.mReplacement != null)
+			{
+				// Replaces the changes before as well
+				clearMerged();
+				mMusics.setAll(c.mReplacement);
+				mListedIds = null;
+			}
+		}
+
+		applyMerged();
+
+		if(!mChanges.isEmpty())
+		{
+			scheduleFlush();
+		}
+	}
+
+	private void mergeUpdate(Music music)
+	{
+		String id = music.getId();
+		if(mAddedIds.contains(id))
+		{
+			// Added in this batch, replaced among the additions
+			for(int i = 0; i < mAdded.size(); i++)
+			{
+				if(mAdded.get(i).getId().equals(id))
+				{
+					mAdded.set(i, music);
+				}
+			}
+		}
+		else if(mRemoved.contains(id) || !isListed(id))
+		{
+			mAdded.add(music);
+			mAddedIds.add(id);
+		}
+		else
+		{
+			mUpdated.put(id, music);
+		}
+	}
+
+	private boolean isListed(String id)
+	{
+		if(mListedIds == null)
+		{
+			mListedIds = new HashSet<>();
+			for (Music m : mMusics)
+			{
+				mListedIds.add(m.getId());
+			}
+		}
+		return mListedIds.contains(id);
+	}
+
+	private void mergeRemoval(Set<String> ids)
+	{
+		mRemoved.addAll(ids);
+		for (String id : ids)
+		{
+			mUpdated.remove(id);
+		}
+
+		if(!Collections.disjoint(mAddedIds, ids))
+		{
+			Iterator<Music> it = mAdded.iterator();
+			while(it.hasNext())
+			{
+				if(ids.contains(it.next().getId()))
+				{
+					it.remove();
+				}
+			}
+			mAddedIds.removeAll(ids);
+		}
+	}
+
+	/**
+	 * Applies the merged changes: removals and in place updates in one pass over the list, then additions
+	 */
+	private void applyMerged()
+	{
+		if(!mRemoved.isEmpty() || !mUpdated.isEmpty())
+		{
+			Set<Music> removed = Collections.newSetFromMap(new IdentityHashMap<Music, Boolean>());
+			for(int i = 0; i < mMusics.size(); i++)
+			{
+				Music m = mMusics.get(i);
+				if(mRemoved.contains(m.getId()))
+				{
+					removed.add(m);
+					continue;
+				}
+
+				Music updated = mUpdated.remove(m.getId());
+				if(updated != null)
+				{
+					mMusics.set(i, updated);
+				}
+			}
+
+			if(!removed.isEmpty())
+			{
+				mMusics.removeAll(removed);
+			}
+		}
+
+		if(!mAdded.isEmpty())
+		{
+			mMusics.addAll(mAdded);
+		}
+
+		clearMerged();
+	}
+
+	private void clearMerged()
+	{
+		mRemoved.clear();
+		mUpdated.clear();
+		mAdded.clear();
+		mAddedIds.clear();
+		mListedIds = null;
+	}
+}
@@ -0,0 +1,113 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Orders of search and browse results.
+ *
+ * Every order except RELEVANCE is computed by the index from DocValues fields written
+ * at commit time, so sorted pages are fetched like any other page and nothing is
+ * sorted in memory. Musics missing the sorted value come last.
+ *
+ * @author vun
+ *
+ */
+public enum MusicSort
+{
+	RELEVANCE("Relevance", null),
+	TITLE("Title", new Sort(stringField(MusicSort.FIELD_TITLE), stringField(MusicSort.FIELD_ARTIST))),
+	ARTIST("Artist", new Sort(stringField(MusicSort.FIELD_ARTIST), stringField(MusicSort.FIELD_TITLE))),
+	LENGTH("Length", new Sort(longField(MusicSort.FIELD_LENGTH, false))),
+	ADDED_AT("Recently added", new Sort(longField(MusicSort.FIELD_ADDED_AT, true)));
+
+	private static final String FIELD_TITLE = "Title.sort";
+	private static final String FIELD_ARTIST = "Artist.sort";
+	private static final String FIELD_LENGTH = "Length.sort";
+	private static final String FIELD_ADDED_AT = "AddedAt.sort";
+
+	private String mLabel;
+
+	/**
+	 * Sort of the index, null to sort by relevance
+	 */
+	private Sort mSort;
+
+	private MusicSort(String label, Sort sort)
+	{
+		mLabel = label;
+		mSort = sort;
+	}
+
+	/**
+	 * @see MusicSort#mSort
+	 */
+	public Sort getSort()
+	{
+		return mSort;
+	}
+
+	@Override
+	public String toString()
+	{
+		return mLabel;
+	}
+
+	/**
+	 * Adds the sort fields of a music to a document
+	 *
+	 * @param musicData Music serialized by {@link Music#serializeToMap()}
+	 */
+	public static void addFields(Document doc, Map<String, String> musicData)
+	{
+		addStringField(doc, FIELD_TITLE, musicData.get("Title"));
+		addStringField(doc, FIELD_ARTIST, musicData.get("Artist"));
+		addLongField(doc, FIELD_LENGTH, musicData.get(Music.KEY_LENGTH));
+		addLongField(doc, FIELD_ADDED_AT, musicData.get(Music.KEY_ADDED_AT));
+	}
+
+	private static void addStringField(Document doc, String field, String value)
+	{
+		if(value != null)
+		{
+			// Sorted without case
+			doc.add(new SortedDocValuesField(field, new BytesRef(value.toLowerCase(Locale.ROOT))));
+		}
+	}
+
+	private static void addLongField(Document doc, String field, String value)
+	{
+		if(value != null)
+		{
+			try
+			{
+				doc.add(new NumericDocValuesField(field, Long.parseLong(value)));
+			}
+			catch (NumberFormatException e)
+			{
+				// Sorted as missing
+			}
+		}
+	}
+
+	private static SortField stringField(String field)
+	{
+		SortField sortField = new SortField(field, SortField.Type.STRING);
+		sortField.setMissingValue(SortField.STRING_LAST);
+		return sortField;
+	}
+
+	private static SortField longField(String field, boolean descending)
+	{
+		SortField sortField = new SortField(field, SortField.Type.LONG, descending);
+		sortField.setMissingValue(descending ? Long.MIN_VALUE : Long.MAX_VALUE);
+		return sortField;
+	}
+}
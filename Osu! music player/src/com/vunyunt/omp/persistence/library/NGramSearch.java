@@ -0,0 +1,220 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Substring search over the searchable fields of a music, using n-gram subfields
+ * instead of leading wildcard queries.
+ *
+ * Each searchable field is indexed twice more at commit time:
+ * <ul>
+ * <li>field.edge holds the prefixes of every word, for prefix matches</li>
+ * <li>field.ngram holds the n-grams of every word, for matches inside words</li>
+ * </ul>
+ * A query word is then found with one or a few term lookups, whatever the size of
+ * the term dictionary.
+ *
+ * @author vun
+ *
+ */
+public class NGramSearch
+{
+	/**
+	 * Fields of a music which are searched
+	 */
+	public static final String[] SEARCH_FIELDS = new String[] { "Title", "AudioFilename", "Artist", "Tags" };
+
+	public static final String SUFFIX_EDGE = ".edge";
+	public static final String SUFFIX_NGRAM = ".ngram";
+
+	/**
+	 * Longest prefix indexed. Longer query words are matched with n-grams only.
+	 */
+	private static final int EDGE_MAX = 20;
+
+	/**
+	 * Shortest and longest n-gram indexed. Query words shorter than NGRAM_MIN only match
+	 * the beginning of words, longer than NGRAM_MAX match all their n-grams of NGRAM_MAX.
+	 */
+	private static final int NGRAM_MIN = 3;
+	private static final int NGRAM_MAX = 8;
+
+	/**
+	 * Prefix matches rank above matches inside words
+	 */
+	private static final float EDGE_BOOST = 2f;
+
+	/**
+	 * Splits text into lower case words of letters and digits, for both indexing and querying
+	 */
+	private static final Analyzer WORD_ANALYZER = new Analyzer()
+	{
+		@Override
+		protected TokenStreamComponents createComponents(String fieldName)
+		{
+			Tokenizer tokenizer = createTokenizer();
+			return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+		}
+	};
+
+	private static Tokenizer createTokenizer()
+	{
+		return CharTokenizer.fromTokenCharPredicate(Character::isLetterOrDigit);
+	}
+
+	/**
+	 * Wraps the analyzer of the regular fields with the analyzers of the n-gram subfields
+	 */
+	public static Analyzer wrapAnalyzer(Analyzer defaultAnalyzer)
+	{
+		Analyzer edgeAnalyzer = new Analyzer()
+		{
+			@Override
+			protected TokenStreamComponents createComponents(String fieldName)
+			{
+				Tokenizer tokenizer = createTokenizer();
+				TokenStream ts = new LowerCaseFilter(tokenizer);
+				return new TokenStreamComponents(tokenizer, new EdgeNGramTokenFilter(ts, 1, EDGE_MAX));
+			}
+		};
+
+		Analyzer ngramAnalyzer = new Analyzer()
+		{
+			@Override
+			protected TokenStreamComponents createComponents(String fieldName)
+			{
+				Tokenizer tokenizer = createTokenizer();
+				TokenStream ts = new LowerCaseFilter(tokenizer);
+				return new TokenStreamComponents(tokenizer, new NGramTokenFilter(ts, NGRAM_MIN, NGRAM_MAX));
+			}
+		};
+
+		Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+		for (String field : SEARCH_FIELDS)
+		{
+			fieldAnalyzers.put(field + SUFFIX_EDGE, edgeAnalyzer);
+			fieldAnalyzers.put(field + SUFFIX_NGRAM, ngramAnalyzer);
+		}
+
+		return new PerFieldAnalyzerWrapper(defaultAnalyzer, fieldAnalyzers);
+	}
+
+	/**
+	 * Adds the n-gram subfields of a field to a document, if the field is searched.
+	 * The subfields are indexed only, never stored.
+	 */
+	public static void addFields(Document doc, String field, String value)
+	{
+		for (String searchField : SEARCH_FIELDS)
+		{
+			if(searchField.equals(field))
+			{
+				doc.add(new TextField(field + SUFFIX_EDGE, value, Field.Store.NO));
+				doc.add(new TextField(field + SUFFIX_NGRAM, value, Field.Store.NO));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Builds a query matching musics which contain every word of the given text
+	 * in any of the searched fields.
+	 *
+	 * @return The query, or null if the text has no word
+	 */
+	public static Query buildQuery(String text)
+	{
+		List<String> words = analyze(text);
+		if(words.isEmpty())
+		{
+			return null;
+		}
+
+		BooleanQuery.Builder query = new BooleanQuery.Builder();
+		for (String word : words)
+		{
+			BooleanQuery.Builder wordQuery = new BooleanQuery.Builder();
+			for (String field : SEARCH_FIELDS)
+			{
+				if(word.length() <= EDGE_MAX)
+				{
+					wordQuery.add(new BoostQuery(new TermQuery(new Term(field + SUFFIX_EDGE, word)), EDGE_BOOST), Occur.SHOULD);
+				}
+
+				if(word.length() >= NGRAM_MIN)
+				{
+					wordQuery.add(ngramQuery(field + SUFFIX_NGRAM, word), Occur.SHOULD);
+				}
+			}
+			query.add(wordQuery.build(), Occur.MUST);
+		}
+
+		return query.build();
+	}
+
+	/**
+	 * Matches a word inside words of a n-gram subfield
+	 */
+	private static Query ngramQuery(String field, String word)
+	{
+		if(word.length() <= NGRAM_MAX)
+		{
+			return new TermQuery(new Term(field, word));
+		}
+
+		// Longer words are not indexed as a whole, all of their longest n-grams must match instead
+		BooleanQuery.Builder grams = new BooleanQuery.Builder();
+		for(int i = 0; i + NGRAM_MAX <= word.length(); i++)
+		{
+			grams.add(new TermQuery(new Term(field, word.substring(i, i + NGRAM_MAX))), Occur.MUST);
+		}
+		return grams.build();
+	}
+
+	/**
+	 * Splits text into words the same way the subfields are indexed
+	 */
+	private static List<String> analyze(String text)
+	{
+		List<String> words = new ArrayList<>();
+		try(TokenStream ts = WORD_ANALYZER.tokenStream("", text))
+		{
+			CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+			ts.reset();
+			while(ts.incrementToken())
+			{
+				words.add(term.toString());
+			}
+			ts.end();
+		}
+		catch(IOException e)
+		{
+			// Not thrown for in-memory text
+		}
+
+		return words;
+	}
+}
@@ -0,0 +1,413 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the [General] and [Metadata] sections of a beatmap (.osu) file.
+ *
+ * The file is read into a byte buffer which is reused between files, and lines are
+ * tokenized in place. Reading stops as soon as both sections are consumed, so the
+ * (much larger) timing points and hit objects are never read. Keys are matched
+ * against the known keys of both sections, so only the values are allocated. The
+ * length of the beatmap is read from the last hit object, at the end of the file.
+ *
+ * A parser is not thread safe. Use one parser per thread.
+ *
+ * @author vun
+ *
+ */
+public class OsuHeaderParser
+{
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	/**
+	 * Amount of bytes read from the end of a beatmap to find the last hit object
+	 */
+	private static final int TAIL_SIZE = 4096;
+
+	/**
+	 * Hit object types whose end time is the sixth value of the line
+	 */
+	private static final int TYPE_SPINNER = 8;
+	private static final int TYPE_MANIA_HOLD = 128;
+
+	private static final byte[] SECTION_GENERAL = "[general]".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SECTION_METADATA = "[metadata]".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Sections which always come after [General] and [Metadata].
+	 * Used to stop early on beatmaps missing one of the sections.
+	 */
+	private static final byte[][] SECTIONS_AFTER_HEADER = new byte[][]
+	{
+		"[events]".getBytes(StandardCharsets.US_ASCII),
+		"[timingpoints]".getBytes(StandardCharsets.US_ASCII),
+		"[hitobjects]".getBytes(StandardCharsets.US_ASCII)
+	};
+
+	/**
+	 * Keys of the [General] and [Metadata] section. Matching keys are not allocated.
+	 */
+	private static final String[] KNOWN_KEYS = new String[]
+	{
+		"AudioFilename", "AudioLeadIn", "AudioHash", "PreviewTime", "Countdown", "SampleSet",
+		"StackLeniency", "Mode", "LetterboxInBreaks", "StoryFireInFront", "UseSkinSprites",
+		"AlwaysShowPlayfield", "OverlayPosition", "SkinPreference", "EpilepsyWarning",
+		"CountdownOffset", "SpecialStyle", "WidescreenStoryboard", "SamplesMatchPlaybackRate",
+		"Title", "TitleUnicode", "Artist", "ArtistUnicode", "Creator", "Version", "Source",
+		"Tags", "BeatmapID", "BeatmapSetID"
+	};
+
+	private static final byte[][] KNOWN_KEY_BYTES = new byte[KNOWN_KEYS.length][];
+	static
+	{
+		for(int i = 0; i < KNOWN_KEYS.length; i++)
+		{
+			KNOWN_KEY_BYTES[i] = KNOWN_KEYS[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private static final int SECTION_NONE = 0;
+	private static final int SECTION_HEADER = 1;
+
+	private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+	/**
+	 * Section the current line is in, either SECTION_NONE or SECTION_HEADER
+	 */
+	private int mSection;
+	private boolean mGeneralRead;
+	private boolean mMetadataRead;
+
+	/**
+	 * Reads the [General] and [Metadata] sections of the given beatmap
+	 *
+	 * @return Key value pairs of both sections
+	 * @throws IOException
+	 */
+	public Map<String, String> parse(File beatmapFile) throws IOException
+	{
+		Map<String, String> values = new HashMap<>();
+		parse(beatmapFile, values);
+		return values;
+	}
+
+	/**
+	 * Reads the time of the last hit object of the given beatmap, from the end of the file.
+	 * Sliders count with their start time, as their end time depends on the timing points.
+	 *
+	 * @return The time in milliseconds, -1 if the beatmap does not end with a hit object
+	 * @throws IOException
+	 */
+	public long parseLength(File beatmapFile) throws IOException
+	{
+		try(FileInputStream in = new FileInputStream(beatmapFile))
+		{
+			return readLength(in.getChannel());
+		}
+	}
+
+	/**
+	 * Reads the [General] and [Metadata] sections into the given map, then the time of the
+	 * last hit object like {@link #parseLength(File)}, opening the beatmap only once
+	 *
+	 * @return The time of the last hit object in milliseconds, -1 if the beatmap does not end with a hit object
+	 * @throws IOException
+	 */
+	public long parseWithLength(File beatmapFile, Map<String, String> values) throws IOException
+	{
+		try(FileInputStream in = new FileInputStream(beatmapFile))
+		{
+			parseHeader(in, values);
+			return readLength(in.getChannel());
+		}
+	}
+
+	/**
+	 * Reads the time of the last hit object from the end of an open beatmap
+	 */
+	private long readLength(FileChannel channel) throws IOException
+	{
+		long length = channel.size();
+		int size = (int) Math.min(length, TAIL_SIZE);
+		channel.position(length - size);
+
+		ByteBuffer tail = ByteBuffer.wrap(mBuffer, 0, size);
+		while(tail.hasRemaining())
+		{
+			if(channel.read(tail) < 0)
+			{
+				return -1;
+			}
+		}
+
+		// Last non-empty line
+		int end = size;
+		while(end > 0 && (mBuffer[end - 1] == '\n' || mBuffer[end - 1] == '\r' || mBuffer[end - 1] == ' '))
+		{
+			end--;
+		}
+		int start = end;
+		while(start > 0 && mBuffer[start - 1] != '\n' && mBuffer[start - 1] != '\r')
+		{
+			start--;
+		}
+
+		// x,y,time,type,hitSound,endTime or objectParams,...
+		String[] values = new String(mBuffer, start, end - start, StandardCharsets.US_ASCII).split(",");
+		if(values.length < 5)
+		{
+			return -1;
+		}
+
+		try
+		{
+			long time = Long.parseLong(values[2].trim());
+			int type = Integer.parseInt(values[3].trim());
+			if((type & (TYPE_SPINNER | TYPE_MANIA_HOLD)) != 0 && values.length > 5)
+			{
+				// Mania hold notes append the hit sample to the end time
+				String endTime = values[5].split(":", 2)[0].trim();
+				time = Math.max(time, Long.parseLong(endTime));
+			}
+			return time;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the [General] and [Metadata] sections of the given beatmap into the given map
+	 *
+	 * @throws IOException
+	 */
+	public void parse(File beatmapFile, Map<String, String> values) throws IOException
+	{
+		try(FileInputStream in = new FileInputStream(beatmapFile))
+		{
+			parseHeader(in, values);
+		}
+	}
+
+	/**
+	 * Reads the [General] and [Metadata] sections from the beginning of an open beatmap
+	 */
+	private void parseHeader(FileInputStream in, Map<String, String> values) throws IOException
+	{
+		mSection = SECTION_NONE;
+		mGeneralRead = false;
+		mMetadataRead = false;
+
+		int limit = 0;
+		int lineStart = 0;
+		boolean firstLine = true;
+
+		while(true)
+		{
+			// Moves the incomplete line to the beginning of the buffer, growing it for very long lines
+			if(lineStart > 0)
+			{
+				System.arraycopy(mBuffer, lineStart, mBuffer, 0, limit - lineStart);
+				limit -= lineStart;
+				lineStart = 0;
+			}
+			else if(limit == mBuffer.length)
+			{
+				byte[] grown = new byte[mBuffer.length * 2];
+				System.arraycopy(mBuffer, 0, grown, 0, limit);
+				mBuffer = grown;
+			}
+
+			int read = in.read(mBuffer, limit, mBuffer.length - limit);
+			if(read < 0)
+			{
+				// Last line without line break
+				if(limit > lineStart)
+				{
+					processLine(lineStart, limit, values);
+				}
+				return;
+			}
+
+			int scanFrom = limit;
+			limit += read;
+
+			if(firstLine && limit >= 3
+					&& mBuffer[0] == (byte) 0xEF && mBuffer[1] == (byte) 0xBB && mBuffer[2] == (byte) 0xBF)
+			{
+				// UTF-8 byte order mark
+				lineStart = 3;
+				scanFrom = 3;
+			}
+			firstLine = false;
+
+			for(int i = scanFrom; i < limit; i++)
+			{
+				if(mBuffer[i] == '\n')
+				{
+					if(!processLine(lineStart, i, values))
+					{
+						return;
+					}
+					lineStart = i + 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Processes the line in the buffer between start (inclusive) and end (exclusive)
+	 *
+	 * @return False if reading can stop
+	 */
+	private boolean processLine(int start, int end, Map<String, String> values)
+	{
+		// Trim, which also removes the \r of CRLF line breaks
+		while(start < end && (mBuffer[start] & 0xFF) <= ' ')
+		{
+			start++;
+		}
+		while(end > start && (mBuffer[end - 1] & 0xFF) <= ' ')
+		{
+			end--;
+		}
+
+		if(start == end)
+		{
+			return true;
+		}
+
+		if(mBuffer[start] == '[')
+		{
+			if(mGeneralRead && mMetadataRead)
+			{
+				return false;
+			}
+
+			if(equalsIgnoreCase(start, end, SECTION_GENERAL))
+			{
+				mGeneralRead = true;
+				mSection = SECTION_HEADER;
+			}
+			else if(equalsIgnoreCase(start, end, SECTION_METADATA))
+			{
+				mMetadataRead = true;
+				mSection = SECTION_HEADER;
+			}
+			else
+			{
+				for (byte[] section : SECTIONS_AFTER_HEADER)
+				{
+					if(equalsIgnoreCase(start, end, section))
+					{
+						return false;
+					}
+				}
+				mSection = SECTION_NONE;
+			}
+
+			return true;
+		}
+
+		if(mSection == SECTION_HEADER)
+		{
+			// Only the first ':' separates the key, values may contain ':' as well
+			int separator = start;
+			while(separator < end && mBuffer[separator] != ':')
+			{
+				separator++;
+			}
+
+			if(separator == end)
+			{
+				return true;
+			}
+
+			int keyEnd = separator;
+			while(keyEnd > start && (mBuffer[keyEnd - 1] & 0xFF) <= ' ')
+			{
+				keyEnd--;
+			}
+
+			int valueStart = separator + 1;
+			while(valueStart < end && (mBuffer[valueStart] & 0xFF) <= ' ')
+			{
+				valueStart++;
+			}
+
+			if(keyEnd > start)
+			{
+				values.put(key(start, keyEnd), new String(mBuffer, valueStart, end - valueStart, StandardCharsets.UTF_8));
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the key in the buffer, without allocating if it is a known key
+	 */
+	private String key(int start, int end)
+	{
+		int length = end - start;
+		for(int i = 0; i < KNOWN_KEY_BYTES.length; i++)
+		{
+			byte[] key = KNOWN_KEY_BYTES[i];
+			if(key.length == length && regionEquals(start, key))
+			{
+				return KNOWN_KEYS[i];
+			}
+		}
+
+		return new String(mBuffer, start, length, StandardCharsets.UTF_8);
+	}
+
+	private boolean regionEquals(int start, byte[] b)
+	{
+		for(int i = 0; i < b.length; i++)
+		{
+			if(mBuffer[start + i] != b[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compares the buffer region with a lower case ASCII string, ignoring case
+	 */
+	private boolean equalsIgnoreCase(int start, int end, byte[] lowerCase)
+	{
+		if(end - start != lowerCase.length)
+		{
+			return false;
+		}
+
+		for(int i = 0; i < lowerCase.length; i++)
+		{
+			byte c = mBuffer[start + i];
+			if(c >= 'A' && c <= 'Z')
+			{
+				c += 'a' - 'A';
+			}
+
+			if(c != lowerCase[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
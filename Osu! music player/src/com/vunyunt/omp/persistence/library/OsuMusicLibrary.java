@@ -1,16 +1,25 @@
 package com.vunyunt.omp.persistence.library;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
 import org.apache.log4j.Logger;
 
+import com.google.gson.Gson;
 import com.vunyunt.omp.persistence.AppConfig;
 import com.vunyunt.omp.persistence.PersistenceManager;
 
@@ -22,16 +31,81 @@ public class OsuMusicLibrary
 {
 	private static final Logger LOGGER = Logger.getLogger(OsuMusicLibrary.class);
 
+	/**
+	 * Time the library needs to be unchanged before the snapshot is written again after
+	 * changes from the Songs folder watcher, as writing it encodes the whole index
+	 */
+	private static final long SNAPSHOT_IDLE_SECONDS = 60;
+
 	private String mOsuPath;
 	private String mSongsPath;
 
 	private File mSongsFolder;
-	private MusicIndex mIndex;
+
+	/**
+	 * Index of the musics, opened in the background. Null until opened, or if it can not be opened.
+	 */
+	private volatile MusicIndex mIndex;
+
+	/**
+	 * Answers searches, the index itself unless configured otherwise
+	 */
+	private volatile SearchBackend mSearchBackend;
+
+	/**
+	 * Musics changed since the search backend was last refreshed or updated, by ID. Null for removed musics.
+	 * Only changed by the thread importing.
+	 */
+	private Map<String, Music> mSearchChanges = new LinkedHashMap<>();
+
+	/**
+	 * Released once the index is opened, or failed to open
+	 */
+	private CountDownLatch mIndexOpened = new CountDownLatch(1);
+
+	private File mSnapshotFile = new File(LibrarySnapshot.SNAPSHOT_FILE_PATH);
+
+	/**
+	 * Writes the snapshot once the library is idle, and whether the index changed since it was last written
+	 */
+	private ScheduledExecutorService mSnapshotExecutor;
+	private ScheduledFuture<?> mPendingSnapshot;
+	private volatile boolean mSnapshotDirty = false;
+
+	/**
+	 * Time the library was constructed, to measure the time until musics are first shown
+	 */
+	private long mCreatedTime = System.nanoTime();
 
 	private ObservableList<Music> mMusics;
 
+	/**
+	 * Publishes changes of {@link OsuMusicLibrary#mMusics} from the import threads in batches
+	 */
+	private MusicListPublisher mPublisher;
+
+	/**
+	 * State of the mapset folders as of the last import
+	 */
+	private MapsetManifest mManifest;
+	private File mManifestFile = new File(MapsetManifest.MANIFEST_FILE_PATH);
+	private Gson mGson = new Gson();
+
 	private AppConfig mAppConfig = PersistenceManager.getInstance().getAppConfig();
 
+	/**
+	 * Thread synchronizing the index with the Songs folder on startup
+	 */
+	private Thread mLoaderThread;
+
+	/**
+	 * Scanner of the running import, cancelled on close
+	 */
+	private volatile BeatmapScanner mScanner;
+
+	private SongsFolderWatcher mWatcher;
+	private volatile boolean mClosed = false;
+
 	/**
 	 * Constructs a music library from the given Osu! path (Installation folder of Osu!)
 	 *
@@ -42,46 +116,270 @@ public class OsuMusicLibrary
 	public OsuMusicLibrary(String osuPath) throws IllegalArgumentException, IOException
 	{
 		mMusics = FXCollections.observableArrayList();
+		mPublisher = new MusicListPublisher(mMusics);
 
 		mOsuPath = osuPath;
-		StringBuilder songsPathBuilder = new StringBuilder(mOsuPath);
-		if(!(mOsuPath.endsWith("/") || mOsuPath.endsWith("\\")))
-		{
-			songsPathBuilder.append("/");
-		}
-		songsPathBuilder.append("Songs/");
-		mSongsPath = songsPathBuilder.toString();
+		mSongsPath = getSongsPath(mOsuPath);
 
 		// Checks if the Songs folder exists
 		// The directory is considered not to be a valid Osu! path otherwise.
-		mSongsFolder = new File(mSongsPath);
-		if(!(mSongsFolder.exists() && mSongsFolder.isDirectory()))
+		if(!isOsuPath(mOsuPath))
 		{
 			throw new IllegalArgumentException("Unable to find Songs folder in the given Osu! path.");
 		}
+		mSongsFolder = new File(mSongsPath);
 
-		LOGGER.info("Initializing music index...");
-		mIndex = new MusicIndex("./musicindex/");
+		mSnapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Library snapshot writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
-		// Synchronizes available musics and the music index in a background thread
-		Thread t = new Thread(new Runnable()
+		// Shows the snapshot, then opens and synchronizes the music index in a background thread
+		// Changes made afterwards are picked up by the Songs folder watcher
+		mLoaderThread = new Thread(new Runnable()
 		{
 			@Override
 			public void run()
 			{
+				Set<String> shownIds = loadSnapshot();
+
+				LOGGER.info("Initializing music index...");
+				try
+				{
+					MusicIndex index = new MusicIndex("./musicindex/", mAppConfig);
+					mSearchBackend = AppConfig.SEARCH_BACKEND_MEMORY.equals(mAppConfig.searchBackend) ? new MemoryMusicIndex(index) : index;
+					mIndex = index;
+				}
+				catch (IOException e)
+				{
+					LOGGER.error("Unable to initialize the music index");
+					LOGGER.debug(e.getClass().getName() + " - " + e.getMessage());
+					return;
+				}
+				finally
+				{
+					mIndexOpened.countDown();
+				}
+
 				LOGGER.info("Importing all music in Songs folder...");
-				loadMusics(mIndex);
+				loadMusics(mIndex, shownIds);
+				if(!mClosed)
+				{
+					writeSnapshot(mIndex);
+				}
+				refreshSearchBackend();
+
+				if(mAppConfig.watchSongsFolder && !mClosed)
+				{
+					startWatcher();
+				}
+			}
+		});
+		mLoaderThread.start();
+	}
+
+	/**
+	 * Gets the Songs folder path in the given Osu! path
+	 */
+	private static String getSongsPath(String osuPath)
+	{
+		StringBuilder songsPathBuilder = new StringBuilder(osuPath);
+		if(!(osuPath.endsWith("/") || osuPath.endsWith("\\")))
+		{
+			songsPathBuilder.append("/");
+		}
+		songsPathBuilder.append("Songs/");
+		return songsPathBuilder.toString();
+	}
+
+	/**
+	 * Checks if the given path is an Osu! installation folder, i.e. it contains a Songs folder
+	 */
+	public static boolean isOsuPath(String osuPath)
+	{
+		File songsFolder = new File(getSongsPath(osuPath));
+		return songsFolder.exists() && songsFolder.isDirectory();
+	}
+
+	/**
+	 * Starts watching the Songs folder for mapsets added, changed or removed while running
+	 */
+	private void startWatcher()
+	{
+		mWatcher = new SongsFolderWatcher(mSongsFolder.getAbsoluteFile().toPath().normalize(), mAppConfig.watchDebounceMillis,
+				new Consumer<String>()
+				{
+					@Override
+					public void accept(String folder)
+					{
+						refreshMapset(mIndex, folder);
+						scheduleSnapshot();
+						updateSearchBackend();
+					}
+				},
+				new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						rescanMusics(mIndex);
+						if(!mClosed)
+						{
+							writeSnapshot(mIndex);
+						}
+						refreshSearchBackend();
+					}
+				});
+
+		try
+		{
+			mWatcher.start();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Unable to watch Songs folder, new beatmaps will be imported on next start");
+			LOGGER.debug(e.getMessage());
+		}
+	}
+
+	/**
+	 * Shows the musics of the snapshot written after the last import, if any
+	 *
+	 * @return IDs of the musics shown, null if there is no snapshot to show
+	 */
+	private Set<String> loadSnapshot()
+	{
+		// The snapshot is of the previous Osu! path when the index is to be cleared
+		if(mAppConfig.clearLucene || !mSnapshotFile.exists())
+		{
+			return null;
+		}
+
+		try
+		{
+			long startTime = System.nanoTime();
+			List<Music> musics = LibrarySnapshot.read(mSnapshotFile);
+			LOGGER.info("Read snapshot of " + musics.size() + " musics in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+
+			Set<String> ids = new HashSet<>();
+			for (Music m : musics)
+			{
+				ids.add(m.getId());
+			}
+			showFirst(musics, "snapshot");
+			return ids;
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to read library snapshot, loading musics from the index");
+			LOGGER.debug(e.getClass().getName() + " - " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the snapshot once the library has been unchanged for {@link OsuMusicLibrary#SNAPSHOT_IDLE_SECONDS},
+	 * or on close, so that a stream of single mapset changes does not rewrite it each time
+	 */
+	private void scheduleSnapshot()
+	{
+		synchronized(mSnapshotExecutor)
+		{
+			mSnapshotDirty = true;
+			if(mPendingSnapshot != null)
+			{
+				mPendingSnapshot.cancel(false);
+			}
+			if(mSnapshotExecutor.isShutdown())
+			{
+				// Closing, written by close()
+				return;
+			}
+			mPendingSnapshot = mSnapshotExecutor.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if(!mClosed)
+					{
+						writeSnapshot(mIndex);
+					}
+				}
+			}, SNAPSHOT_IDLE_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the musics of the index, shown on the next start
+	 */
+	private void writeSnapshot(MusicIndex index)
+	{
+		synchronized(mSnapshotExecutor)
+		{
+			mSnapshotDirty = false;
+			if(mPendingSnapshot != null)
+			{
+				mPendingSnapshot.cancel(false);
+				mPendingSnapshot = null;
+			}
+		}
+
+		try
+		{
+			long startTime = System.nanoTime();
+			LibrarySnapshot.write(mSnapshotFile, index);
+			LOGGER.info("Wrote library snapshot in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to write library snapshot, the previous snapshot is kept");
+			LOGGER.debug(e.getClass().getName() + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Replaces the content of the music list with the first musics shown, and logs the
+	 * time from the construction of the library until the list is updated
+	 */
+	private void showFirst(List<Music> musics, String source)
+	{
+		mPublisher.replaceAll(musics);
+
+		// Queued after the flush of the publisher, so it runs once the list is replaced
+		Platform.runLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				LOGGER.info("Time to first list render: " + (System.nanoTime() - mCreatedTime) / 1000000 + "ms, "
+						+ musics.size() + " musics from the " + source);
 			}
 		});
-		t.start();
 	}
 
 	/**
 	 * Load and synchronize musics between the index and the Osu! path
+	 *
+	 * @param shownIds IDs of the musics already shown from the snapshot, null if none are
 	 */
-	private void loadMusics(MusicIndex index)
+	private void loadMusics(MusicIndex index, Set<String> shownIds)
 	{
-		if(mAppConfig.clearLucene)
+		mManifest = MapsetManifest.load(mGson, mManifestFile);
+
+		// Indexes written before the sort fields lack the length of the musics, read from the beatmaps only
+		boolean reimport = index.getSchemaVersion() < MusicIndex.SCHEMA_SORT && !index.isEmpty();
+		if(reimport)
+		{
+			LOGGER.info("Index schema " + index.getSchemaVersion() + " is outdated, importing all musics again");
+		}
+
+		if(mAppConfig.clearLucene || reimport)
 		{
 			mAppConfig.clearLucene = false;
 			try
@@ -93,41 +391,114 @@ public class OsuMusicLibrary
 				LOGGER.error("Unable to clear index");
 				LOGGER.debug(e.getMessage());
 			}
+			mManifest.clear();
 			PersistenceManager.getInstance().saveConfig();
 		}
-		loadIndex(index);
-		importMusics(index);
+
+		try
+		{
+			index.upgradeSchema();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Unable to reindex musics, search results may be incomplete");
+			LOGGER.debug(e.getMessage());
+		}
+
+		// Without a manifest every indexed music is checked on disk and every mapset is read.
+		// Otherwise only new, changed and removed mapset folders are processed.
+		if(mManifest.isEmpty())
+		{
+			loadIndex(index, true, shownIds);
+			importMusics(index);
+		}
+		else
+		{
+			loadIndex(index, false, shownIds);
+			rescanMusics(index);
+		}
 	}
 
 	/**
 	 * Loads all music from the given index
-	 * Also removes deleted musics
+	 *
+	 * Musics already shown from the snapshot are reconciled with the index instead:
+	 * only the musics missing from the snapshot are added, and the musics no longer
+	 * in the index are removed, so the list is not rebuilt.
+	 *
+	 * @param checkFiles	Removes musics whose audio file no longer exists if true
+	 * @param shownIds		IDs of the musics shown from the snapshot, null if none are
 	 */
-	private void loadIndex(MusicIndex index)
+	private void loadIndex(MusicIndex index, boolean checkFiles, Set<String> shownIds)
 	{
 		try
 		{
 			LOGGER.info("Loading all musics from index...");
-			List<Music> musics = index.getAllMusics();
+			long startTime = System.nanoTime();
 			PersistenceManager pm = PersistenceManager.getInstance();
-			for (Music music : musics)
+			int[] loaded = new int[] { 0 };
+
+			// The first batch replaces whatever the list holds, the following ones are appended,
+			// so the first musics are shown without waiting for the whole index
+			index.forEachMusic(MusicIndex.LOAD_BATCH_SIZE, new Consumer<List<Music>>()
 			{
-				if(music.getAudioFile(pm).exists())
+				@Override
+				public void accept(List<Music> batch)
 				{
-					Platform.runLater(new Runnable()
+					List<Music> available = new ArrayList<>(batch.size());
+					for (Music music : batch)
 					{
-						@Override
-						public void run()
+						if(!checkFiles || music.getAudioFile(pm).exists())
 						{
-							mMusics.add(music);
+							available.add(music);
 						}
-					});
-				}
-				else
-				{
-					mIndex.remove(music);
+						else
+						{
+							try
+							{
+								index.remove(music);
+							}
+							catch (IOException e)
+							{
+								LOGGER.warn("Unable to remove missing music " + music.getId());
+							}
+						}
+					}
+
+					if(shownIds != null)
+					{
+						List<Music> added = new ArrayList<>();
+						for (Music music : available)
+						{
+							if(!shownIds.remove(music.getId()))
+							{
+								added.add(music);
+							}
+						}
+						mPublisher.addAll(added);
+					}
+					else if(loaded[0] == 0)
+					{
+						showFirst(available, "index");
+					}
+					else
+					{
+						mPublisher.addAll(available);
+					}
+					loaded[0] += batch.size();
 				}
+			});
+
+			if(shownIds != null)
+			{
+				// Left are the shown musics which are not in the index
+				mPublisher.remove(shownIds);
+			}
+			else if(loaded[0] == 0)
+			{
+				mPublisher.replaceAll(new ArrayList<>());
 			}
+			LOGGER.info("Loaded " + loaded[0] + " musics in " + (System.nanoTime() - startTime) / 1000000 + "ms");
 		}
 		catch (IOException e)
 		{
@@ -144,99 +515,291 @@ public class OsuMusicLibrary
 	 */
 	private void importMusics(MusicIndex index)
 	{
-		// List all directories in the songs folder
-		String directories[] = mSongsFolder.list(new FilenameFilter()
+		BeatmapScanner scanner = new BeatmapScanner(mSongsFolder, mAppConfig.scanParallelism);
+		mScanner = scanner;
+
+		long startTime = System.nanoTime();
+		try
 		{
-			@Override
-			public boolean accept(File dir, String name)
-			{
-				return new File(dir, name).isDirectory();
-			}
-		});
+			index.beginImport();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Unable to load music IDs, checking the index for each music instead");
+			LOGGER.debug(e.getMessage());
+		}
 
-		for (String dir : directories)
+		int scanned[] = new int[] { 0 };
+		try
 		{
-			// List all beatmaps in a directories
-			// Each difficulty is stored in a separate beatmap
-			// Since each difficulty can specify its own audio file,
-			// All difficulty needs to be considered.
-			File dirFile = new File(mSongsFolder, dir);
-			String beatmaps[] = dirFile.list(new FilenameFilter()
+			// Musics are added in scan order, which is the same for serial and parallel scans,
+			// while the next mapsets are scanned
+			scanner.scan(scanner.listMapsets(), new Consumer<List<Mapset>>()
 			{
 				@Override
-				public boolean accept(File dir, String name)
+				public void accept(List<Mapset> mapsets)
 				{
-					return name.endsWith(".osu");
+					for (Mapset mapset : mapsets)
+					{
+						if(mClosed)
+						{
+							return;
+						}
+
+						// Recorded first, which sets the time the musics are added at
+						mManifest.put(mapset);
+						for (Music m : mapset.getMusics())
+						{
+							// Adds the music into index if not already indexed
+							if(index.addNewMusic(m))
+							{
+								mPublisher.add(m);
+							}
+						}
+
+						maybeCommit(index);
+					}
+					scanned[0] += mapsets.size();
 				}
 			});
 
-			// Get MapSet ID and name
-			String dirnameData[] = dir.split(" ", 2);
-			String mapsetId = dirnameData[0];
-			//String mapsetName = dirnameData.length == 2? dirnameData[1] : "";
+			commit(index);
+		}
+		finally
+		{
+			index.endImport();
+		}
 
-			// For each beatmap, get the audio file path from the AudioFilename field
-			for (String beatmap : beatmaps)
-			{
-				File beatmapFile = new File(dirFile, beatmap);
+		LOGGER.info("Imported " + scanned[0] + " mapsets in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
 
-				try // (BufferedReader br = new BufferedReader(new FileReader(beatmapFile)))
+	/**
+	 * Imports only the mapset folders that are added, changed or removed since the
+	 * manifest was saved.
+	 */
+	private void rescanMusics(MusicIndex index)
+	{
+		if(mClosed)
+		{
+			return;
+		}
+
+		BeatmapScanner scanner = new BeatmapScanner(mSongsFolder, mAppConfig.scanParallelism);
+		mScanner = scanner;
+
+		long startTime = System.nanoTime();
+		String directories[] = scanner.listMapsets();
+		Set<String> removed = new HashSet<>(mManifest.getFolders());
+		List<String> changed = new ArrayList<>();
+
+		for (String dir : directories)
+		{
+			removed.remove(dir);
+
+			// Only folders whose last modified time changed need to be listed
+			if(!mManifest.isUnmodified(dir, new File(mSongsFolder, dir).lastModified()))
+			{
+				Mapset mapset = scanner.describeMapset(dir);
+				if(mapset != null && mManifest.isUnchanged(mapset))
 				{
-					LineIterator it = FileUtils.lineIterator(beatmapFile);
-					String line;
+					mManifest.touch(mapset);
+				}
+				else
+				{
+					changed.add(dir);
+				}
+			}
+		}
 
-					// Iterate over the lines to read and process necessary informations
-					// Once the amount of section is reached (i.e. all necessary informations
-					// are read), the loop is broke.
-					int sectionToProcess = 2;
-					int processedSection = 0;
+		for (String dir : removed)
+		{
+			if(mClosed)
+			{
+				return;
+			}
 
-					Map<String, String> metadata = new HashMap<String, String>();
+			removeMapset(index, dir);
+			maybeCommit(index);
+		}
 
-					while(it.hasNext() && (line = it.next()) != null && processedSection < sectionToProcess)
+		scanner.scan(changed.toArray(new String[changed.size()]), new Consumer<List<Mapset>>()
+		{
+			@Override
+			public void accept(List<Mapset> mapsets)
+			{
+				for (Mapset mapset : mapsets)
+				{
+					if(mClosed)
 					{
-						if(line.startsWith("["))
-						{
-							++processedSection;
-							switch(line.toLowerCase())
-							{
-							case "[general]":
-							case "[metadata]":
-								metadata.putAll(readSection(it));
-								break;
-							default:
-								--processedSection;
-								break;
-							}
-						}
+						return;
 					}
 
-					// Adds the music into index if not already indexed
-					Music m = new Music(mapsetId + metadata.get("AudioFilename"), dir, beatmap, metadata);
-					if(index.addNewMusic(m))
-					{
-						Platform.runLater(new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								mMusics.add(m);
-							}
-						});
-
-					}
-				}
-				catch (IOException e)
-				{
-					LOGGER.error("Unable to load beatmap " + beatmap);
-					LOGGER.debug(e.getMessage());
+					updateMapset(index, mapset);
+					maybeCommit(index);
 				}
 			}
+		});
+		if(mClosed)
+		{
+			return;
+		}
+
+		LOGGER.info("Rescanned Songs folder in " + (System.nanoTime() - startTime) / 1000000 + "ms, "
+				+ changed.size() + " mapsets changed, " + removed.size() + " mapsets removed");
+
+		commit(index);
+	}
+
+	/**
+	 * Imports a single mapset folder after it is added, changed or removed
+	 */
+	private void refreshMapset(MusicIndex index, String folder)
+	{
+		if(mClosed)
+		{
+			return;
+		}
+
+		long startTime = System.nanoTime();
+
+		Mapset mapset = new BeatmapScanner(mSongsFolder, 1).scanMapset(folder);
+		if(mapset == null)
+		{
+			removeMapset(index, folder);
+		}
+		else
+		{
+			updateMapset(index, mapset);
+		}
+
+		commit(index);
+		LOGGER.info("Refreshed mapset " + folder + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
+
+	/**
+	 * Removes all musics of a recorded mapset folder from the index and music list
+	 */
+	private void removeMapset(MusicIndex index, String folder)
+	{
+		MapsetManifest.Entry entry = mManifest.remove(folder);
+		if(entry == null)
+		{
+			return;
+		}
+
+		removeMusics(index, entry.musicIds);
+	}
+
+	/**
+	 * Replaces the recorded musics of a mapset folder with the musics of a fresh scan
+	 */
+	private void updateMapset(MusicIndex index, Mapset mapset)
+	{
+		MapsetManifest.Entry entry = mManifest.get(mapset.getFolder());
+		Set<String> stale = entry != null ? new HashSet<>(entry.musicIds) : new HashSet<>();
+		for (Music m : mapset.getMusics())
+		{
+			stale.remove(m.getId());
+		}
+
+		// Recorded first, which sets the time the musics are added at
+		mManifest.put(mapset);
+		removeMusics(index, stale);
+
+		// Difficulties sharing an audio file share an ID, and are listed once
+		Set<String> handled = new HashSet<>();
+		for (Music m : mapset.getMusics())
+		{
+			if(handled.add(m.getId()))
+			{
+				index.updateMusic(m);
+				mSearchChanges.put(m.getId(), m);
+				mPublisher.update(m);
+			}
 		}
+	}
 
+	/**
+	 * Removes musics a mapset folder no longer has, once the folder is recorded without them.
+	 *
+	 * IDs are made of the first word of the folder name and the audio file name, so folders
+	 * of unsubmitted mapsets often share IDs, e.g. one artist and "audio.mp3". A music whose
+	 * ID another recorded folder still has is read again from that folder instead.
+	 */
+	private void removeMusics(MusicIndex index, Collection<String> ids)
+	{
+		Set<String> removed = new HashSet<>();
+		for (String id : ids)
+		{
+			Music other = readOtherFolder(id);
+			if(other != null)
+			{
+				index.updateMusic(other);
+				mSearchChanges.put(id, other);
+				mPublisher.update(other);
+				continue;
+			}
+
+			try
+			{
+				index.remove(id);
+			}
+			catch (IOException e)
+			{
+				LOGGER.error("Unable to remove music " + id + " from index");
+				LOGGER.debug(e.getMessage());
+			}
+			mSearchChanges.put(id, null);
+			removed.add(id);
+		}
+
+		if(!removed.isEmpty())
+		{
+			mPublisher.remove(removed);
+		}
+	}
+
+	/**
+	 * Reads the music with the given ID from another recorded folder having it
+	 *
+	 * @return The music, null if no recorded folder has it
+	 */
+	private Music readOtherFolder(String id)
+	{
+		String folder = mManifest.getFolder(id);
+		if(folder == null)
+		{
+			return null;
+		}
+
+		Mapset mapset = new BeatmapScanner(mSongsFolder, 1).scanMapset(folder);
+		if(mapset == null)
+		{
+			return null;
+		}
+
+		for (Music m : mapset.getMusics())
+		{
+			if(m.getId().equals(id))
+			{
+				m.setAddedAt(mManifest.get(folder).addedAt);
+				return m;
+			}
+		}
+
+		// Changed since recorded, imported again once the watcher or the next start notices
+		return null;
+	}
+
+	/**
+	 * Commits the index and saves the manifest once the index is committed
+	 */
+	private void commit(MusicIndex index)
+	{
 		try
 		{
-			mIndex.commit();
+			index.commit();
+			mManifest.save(mGson, mManifestFile);
 		}
 		catch(IOException e)
 		{
@@ -246,26 +809,51 @@ public class OsuMusicLibrary
 	}
 
 	/**
-	 * Reads the section LineIterator is currently at into a key value map
+	 * Makes the musics committed so far searchable by the search backend
 	 */
-	private Map<String, String> readSection(LineIterator it)
+	private void refreshSearchBackend()
 	{
-		Map<String, String> kvMap = new HashMap<String, String>();
+		mSearchChanges.clear();
+		try
+		{
+			mSearchBackend.refresh();
+		}
+		catch(IOException e)
+		{
+			LOGGER.error("Unable to refresh search backend, search results may be outdated");
+			LOGGER.debug(e.getClass() + " " + e.getMessage());
+		}
+	}
 
-		String line;
-		while(it.hasNext() && !(line = it.next().trim()).startsWith("["))
+	/**
+	 * Makes the musics changed since the last refresh or update searchable by the search backend,
+	 * once committed
+	 */
+	private void updateSearchBackend()
+	{
+		Map<String, Music> changes = new LinkedHashMap<>(mSearchChanges);
+		mSearchChanges.clear();
+		try
 		{
-			if(line != null && line.length() > 0)
-			{
-				String tokens[] = line.split(":");
-				if(tokens.length == 2)
-				{
-					kvMap.put(tokens[0].trim(), tokens[1].trim());
-				}
-			}
+			mSearchBackend.update(changes);
 		}
+		catch(IOException e)
+		{
+			LOGGER.error("Unable to update search backend, search results may be outdated");
+			LOGGER.debug(e.getClass() + " " + e.getMessage());
+		}
+	}
 
-		return kvMap;
+	/**
+	 * Commits the index during an import if enough changes are made since the last commit,
+	 * see {@link MusicIndex#isCommitDue()}
+	 */
+	private void maybeCommit(MusicIndex index)
+	{
+		if(index.isCommitDue())
+		{
+			commit(index);
+		}
 	}
 
 	/**
@@ -283,25 +871,162 @@ public class OsuMusicLibrary
 		return mSongsFolder.getAbsolutePath();
 	}
 
-	public ObservableList<Music> search(String query)
+	/**
+	 * Searches the library. Pages of hits are fetched through the returned cursor.
+	 */
+	public SearchCursor search(String query)
+	{
+		return search(query, null, MusicSort.RELEVANCE);
+	}
+
+	/**
+	 * Searches the musics having a facet value, in the given order.
+	 * All musics (having the facet value) are browsed if the query is empty.
+	 * Waits for the index to be opened.
+	 *
+	 * @param facet Facet value the musics must have, null to search all musics
+	 */
+	public SearchCursor search(String query, FacetCount facet, MusicSort sort)
 	{
-		ObservableList<Music> results = FXCollections.observableArrayList();
+		SearchBackend backend = awaitSearchBackend();
+		if(backend == null)
+		{
+			// Nothing can be searched
+			return new MemorySearchCursor(new Music[0], new int[0], mAppConfig.searchPageSize);
+		}
+
+		if(facet == null)
+		{
+			return backend.search(query, null, null, sort, mAppConfig.searchPageSize);
+		}
+
+		return backend.search(query, facet.getDimension(), facet.getValue(), sort, mAppConfig.searchPageSize);
+	}
+
+	/**
+	 * Counts the musics having each value of a facet dimension
+	 *
+	 * @param dimension One of {@link Facets#DIMENSIONS}
+	 * @return The most frequent values first, empty if the index can not be read
+	 */
+	public List<FacetCount> getFacetCounts(String dimension)
+	{
+		SearchBackend backend = awaitSearchBackend();
+		if(backend == null)
+		{
+			return new ArrayList<>();
+		}
+
 		try
 		{
-			List<Music> hits = mIndex.search(query, 50);
-			results.addAll(hits);
+			return backend.getFacetCounts(dimension, mAppConfig.facetLimit);
 		}
 		catch (IOException e)
 		{
-			LOGGER.error("Unable to search index.");
+			LOGGER.error("Unable to count facet " + dimension);
 			LOGGER.debug(e.getClass().getName() + " - " + e.getMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Waits until the index is opened in the background
+	 *
+	 * @return The search backend, null if the index can not be opened or the wait is interrupted
+	 */
+	private SearchBackend awaitSearchBackend()
+	{
+		try
+		{
+			mIndexOpened.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		return mSearchBackend;
+	}
+
+	/**
+	 * Loads all metadata of a music returned by a search, which only has the fields
+	 * needed to display and play it.
+	 *
+	 * @return The same music, completed if possible
+	 */
+	public Music loadMusic(Music music)
+	{
+		// Search results are not complete, and only exist once the index is opened.
+		// Locked as musics are also loaded ahead of playback, off the JavaFX thread.
+		MusicIndex index = mIndex;
+		synchronized(music)
+		{
+			if(!music.isComplete() && index != null)
+			{
+				try
+				{
+					Music full = index.getMusic(music.getId());
+					if(full != null)
+					{
+						music.complete(full);
+					}
+				}
+				catch (IOException e)
+				{
+					LOGGER.error("Unable to load music " + music.getId());
+					LOGGER.debug(e.getClass().getName() + " - " + e.getMessage());
+				}
+			}
 		}
 
-		return results;
+		return music;
 	}
 
+	/**
+	 * Stops the background import and the Songs folder watcher, writes the snapshot if changes
+	 * are not written yet, then closes the index
+	 */
 	public void close()
 	{
-		mIndex.close();
+		mClosed = true;
+		if(mScanner != null)
+		{
+			mScanner.cancel();
+		}
+
+		if(mWatcher != null)
+		{
+			mWatcher.stop();
+		}
+
+		try
+		{
+			mLoaderThread.join();
+
+			// Waits for a snapshot being written, the pending one is written below instead
+			synchronized(mSnapshotExecutor)
+			{
+				if(mPendingSnapshot != null)
+				{
+					mPendingSnapshot.cancel(false);
+				}
+				mSnapshotExecutor.shutdown();
+			}
+			mSnapshotExecutor.awaitTermination(SNAPSHOT_IDLE_SECONDS, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if(mIndex != null)
+		{
+			if(mSnapshotDirty)
+			{
+				writeSnapshot(mIndex);
+			}
+			mIndex.close();
+		}
 	}
 }
@@ -0,0 +1,116 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Bounded LRU cache of the first page of search results, keyed by the normalized
+ * search text.
+ *
+ * Every entry remembers the version of the index reader it was computed on, and is
+ * only returned for a reader of the same version. Committing to the index therefore
+ * invalidates all entries, as the refreshed reader has a new version.
+ *
+ * @author vun
+ *
+ */
+public class QueryCache
+{
+	private static class CachedPage
+	{
+		private long mVersion;
+		private TopDocs mDocs;
+		private List<Music> mMusics;
+	}
+
+	private Map<String, CachedPage> mEntries;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	/**
+	 * @param capacity Maximum amount of cached queries. The least recently used is evicted first.
+	 */
+	public QueryCache(int capacity)
+	{
+		mEntries = new LinkedHashMap<String, CachedPage>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Normalizes search text, so that texts differing only in case and white space
+	 * share an entry
+	 */
+	public static String normalize(String text)
+	{
+		return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Gets the cached first page of a query
+	 *
+	 * @param key		Normalized search text
+	 * @param version	Version of the reader the page is needed for
+	 * @param n			Amount of hits needed
+	 * @param musics	Receives the cached musics on a hit
+	 * @return The cached hits, or null on a miss
+	 */
+	public synchronized TopDocs get(String key, long version, int n, List<Music> musics)
+	{
+		CachedPage e = mEntries.get(key);
+		if(e == null || e.mVersion != version || e.mMusics.size() < Math.min(n, e.mDocs.totalHits))
+		{
+			mMisses++;
+			return null;
+		}
+
+		mHits++;
+		musics.addAll(e.mMusics);
+		return e.mDocs;
+	}
+
+	/**
+	 * Caches the first page of a query
+	 */
+	public synchronized void put(String key, long version, TopDocs docs, List<Music> musics)
+	{
+		CachedPage e = new CachedPage();
+		e.mVersion = version;
+		e.mDocs = docs;
+		e.mMusics = new ArrayList<>(musics);
+		mEntries.put(key, e);
+	}
+
+	public synchronized void clear()
+	{
+		mEntries.clear();
+	}
+
+	public synchronized long getHitCount()
+	{
+		return mHits;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return mMisses;
+	}
+
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+}
@@ -0,0 +1,57 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the searches of a library.
+ *
+ * The musics themselves are always stored in the {@link MusicIndex}, a backend only
+ * decides how they are searched. The backend used is chosen with
+ * {@link com.vunyunt.omp.persistence.AppConfig#searchBackend}.
+ *
+ * @author vun
+ *
+ */
+public interface SearchBackend
+{
+	/**
+	 * Searches the musics having a facet value, in the given order.
+	 * Browses all musics (having the facet value) if the text is empty.
+	 *
+	 * @param searchQuery		Text to search for
+	 * @param facetDimension	Dimension of the facet value, one of {@link Facets#DIMENSIONS}, null for all musics
+	 * @param facetValue		Facet value the musics must have, null for all musics
+	 * @param sort				Order of the hits
+	 * @param pageSize			Amount of hits fetched at once
+	 * @return A cursor over the hits, fetching the first page when requested
+	 */
+	SearchCursor search(String searchQuery, String facetDimension, String facetValue, MusicSort sort, int pageSize);
+
+	/**
+	 * Counts the musics having each value of a facet dimension
+	 *
+	 * @param dimension	One of {@link Facets#DIMENSIONS}
+	 * @param limit		Maximum amount of values returned
+	 * @return The most frequent values, by descending count then by value
+	 * @throws IOException
+	 */
+	List<FacetCount> getFacetCounts(String dimension, int limit) throws IOException;
+
+	/**
+	 * Makes the musics committed to the index since the last refresh searchable
+	 *
+	 * @throws IOException
+	 */
+	void refresh() throws IOException;
+
+	/**
+	 * Makes changes of a few musics searchable once they are committed to the index,
+	 * without going through all musics like {@link #refresh()}
+	 *
+	 * @param changes Changed or added musics by ID, null for removed musics
+	 * @throws IOException
+	 */
+	void update(Map<String, Music> changes) throws IOException;
+}
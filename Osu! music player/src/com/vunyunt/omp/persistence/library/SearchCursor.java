@@ -0,0 +1,35 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Pages through the results of a search.
+ *
+ * Hits only need to carry the fields needed to display and play a music, see
+ * {@link Music#DISPLAY_FIELDS}. The remaining metadata is loaded with
+ * {@link OsuMusicLibrary#loadMusic(Music)} when needed.
+ *
+ * @author vun
+ *
+ */
+public interface SearchCursor
+{
+	/**
+	 * Fetches the next page of hits
+	 *
+	 * @return The next page, empty if there are no more hits
+	 * @throws IOException
+	 */
+	List<Music> nextPage() throws IOException;
+
+	/**
+	 * Checks if there are hits not fetched yet
+	 */
+	boolean hasMore();
+
+	/**
+	 * Amount of hits in total, -1 until the first page is fetched
+	 */
+	int getTotalHits();
+}
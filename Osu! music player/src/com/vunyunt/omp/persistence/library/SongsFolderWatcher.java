@@ -0,0 +1,274 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the Songs folder for added, changed and removed mapset folders.
+ *
+ * Events are collected per mapset folder and only reported once the folder has
+ * been quiet for the debounce time, so that extracting a mapset with dozens of
+ * files results in a single change.
+ *
+ * The Songs folder itself is watched for mapset folders being created, renamed
+ * or deleted. Mapset folders created while watching are watched as well, as
+ * their files are usually written after the folder is created.
+ *
+ * @author vun
+ *
+ */
+public class SongsFolderWatcher
+{
+	private static final Logger LOGGER = Logger.getLogger(SongsFolderWatcher.class);
+
+	/**
+	 * Time stop() waits for a change being delivered to finish
+	 */
+	private static final long STOP_TIMEOUT_SECONDS = 30;
+
+	private Path mSongsFolder;
+	private long mDebounceMillis;
+
+	/**
+	 * Called with the mapset folder name, relative to the Songs folder, once it is quiet
+	 */
+	private Consumer<String> mOnMapsetChanged;
+
+	/**
+	 * Called when events are lost and the whole Songs folder needs to be checked
+	 */
+	private Runnable mOnOverflow;
+
+	private WatchService mWatchService;
+	private Thread mWatchThread;
+
+	/**
+	 * Delivers debounced changes. Single threaded, so changes are never reported concurrently.
+	 */
+	private ScheduledExecutorService mScheduler;
+
+	/**
+	 * Mapset folders with pending changes, mapped to the time of their last event
+	 */
+	private Map<String, Long> mPendingFolders = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructs a watcher for the given Songs folder. Call start() to start watching.
+	 *
+	 * @param songsFolder		Songs folder of Osu!
+	 * @param debounceMillis	Time a mapset folder needs to be quiet before its change is reported
+	 * @param onMapsetChanged	{@link SongsFolderWatcher#mOnMapsetChanged}
+	 * @param onOverflow		{@link SongsFolderWatcher#mOnOverflow}
+	 */
+	public SongsFolderWatcher(Path songsFolder, long debounceMillis, Consumer<String> onMapsetChanged, Runnable onOverflow)
+	{
+		mSongsFolder = songsFolder;
+		mDebounceMillis = debounceMillis;
+		mOnMapsetChanged = onMapsetChanged;
+		mOnOverflow = onOverflow;
+	}
+
+	/**
+	 * Starts watching in a background thread
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException
+	{
+		mWatchService = FileSystems.getDefault().newWatchService();
+		register(mSongsFolder);
+
+		mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Songs folder changes");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		mWatchThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				watch();
+			}
+		}, "Songs folder watcher");
+		mWatchThread.setDaemon(true);
+		mWatchThread.start();
+
+		LOGGER.info("Watching " + mSongsFolder + " for changes");
+	}
+
+	/**
+	 * Stops watching. Pending changes are dropped, and a change being delivered is waited
+	 * for, so that nothing is delivered once this returns.
+	 */
+	public void stop()
+	{
+		try
+		{
+			if(mWatchService != null)
+			{
+				mWatchService.close();
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Unable to close watch service");
+			LOGGER.debug(e.getMessage());
+		}
+
+		mPendingFolders.clear();
+
+		if(mScheduler != null)
+		{
+			mScheduler.shutdownNow();
+			try
+			{
+				if(!mScheduler.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				{
+					LOGGER.error("Change still being delivered after " + STOP_TIMEOUT_SECONDS + "s, stopping anyway");
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void register(Path dir) throws IOException
+	{
+		dir.register(mWatchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	private void watch()
+	{
+		while(true)
+		{
+			WatchKey key;
+			try
+			{
+				key = mWatchService.take();
+			}
+			catch (InterruptedException | ClosedWatchServiceException e)
+			{
+				return;
+			}
+
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents())
+			{
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+				{
+					LOGGER.info("Songs folder events overflowed, rescanning");
+					mScheduler.execute(mOnOverflow);
+					continue;
+				}
+
+				Path changed = dir.resolve((Path) event.context());
+				Path relative = mSongsFolder.relativize(changed);
+				if(relative.getNameCount() == 0)
+				{
+					continue;
+				}
+
+				// Newly created mapset folders are watched for the files written into them
+				if(dir.equals(mSongsFolder) && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+						&& Files.isDirectory(changed))
+				{
+					try
+					{
+						register(changed);
+					}
+					catch (IOException e)
+					{
+						LOGGER.debug("Unable to watch " + changed + ": " + e.getMessage());
+					}
+				}
+
+				onEvent(relative.getName(0).toString());
+			}
+
+			// Keys of deleted folders become invalid, which is fine
+			if(!key.reset() && dir.equals(mSongsFolder))
+			{
+				LOGGER.error("Songs folder is no longer accessible, stopped watching");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records an event of a mapset folder and schedules its delivery
+	 */
+	private void onEvent(String folder)
+	{
+		mPendingFolders.put(folder, System.nanoTime());
+		try
+		{
+			mScheduler.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					deliverQuietFolders();
+				}
+			}, mDebounceMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Scheduler is shut down while stopping
+		}
+	}
+
+	/**
+	 * Reports all mapset folders which have no event within the debounce time
+	 */
+	private void deliverQuietFolders()
+	{
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, Long>> it = mPendingFolders.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String, Long> e = it.next();
+			if((now - e.getValue()) / 1000000 >= mDebounceMillis && mPendingFolders.remove(e.getKey(), e.getValue()))
+			{
+				try
+				{
+					mOnMapsetChanged.accept(e.getKey());
+				}
+				catch (RuntimeException ex)
+				{
+					LOGGER.error("Unable to process change of mapset " + e.getKey());
+					LOGGER.debug(ex.getClass().getName() + " - " + ex.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.vunyunt.omp.persistence.library;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares one instance of equal strings between musics, for values repeated across
+ * many musics such as artist and creator names.
+ *
+ * Thread safe. Values are kept for the life of the pool, so only values with few
+ * distinct instances compared to the amount of musics should be pooled.
+ *
+ * @author vun
+ *
+ */
+public class StringPool
+{
+	private ConcurrentMap<String, String> mValues = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets the pooled instance of a value, pooling it if needed
+	 *
+	 * @return The pooled value, null if the value is null
+	 */
+	public String get(String value)
+	{
+		if(value == null)
+		{
+			return null;
+		}
+
+		String pooled = mValues.putIfAbsent(value, value);
+		return pooled != null ? pooled : value;
+	}
+
+	public int size()
+	{
+		return mValues.size();
+	}
+}
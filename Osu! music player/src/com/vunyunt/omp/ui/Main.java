@@ -37,6 +37,7 @@ public class Main extends Application
 	private PersistenceManager mPersistence = PersistenceManager.getInstance();
 
 	private Stage mStage;
+	private MainWindow mMainWindow;
 
 	@Override
 	public void start(Stage primaryStage)
@@ -49,7 +50,9 @@ public class Main extends Application
 
 		try
 		{
-			AnchorPane root = FXMLLoader.load(getClass().getResource("MainWindow.fxml"));
+			FXMLLoader loader = new FXMLLoader(getClass().getResource("MainWindow.fxml"));
+			AnchorPane root = loader.load();
+			mMainWindow = loader.getController();
 
 			Scene scene = new Scene(root, 1280, 720);
 			scene.getStylesheets().add(getClass().getResource("application.css").toExternalForm());
@@ -103,6 +106,10 @@ public class Main extends Application
 		appConfig.windowHeight = mStage.getScene().heightProperty().doubleValue();
 
 		mPersistence.saveConfig();
+		if(mMainWindow != null)
+		{
+			mMainWindow.close();
+		}
 		System.exit(0);
 	}
 }
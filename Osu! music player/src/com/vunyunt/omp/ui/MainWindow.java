@@ -3,21 +3,35 @@ package com.vunyunt.omp.ui;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
 
 import com.vunyunt.omp.media.audio.AudioPlayer;
+import com.vunyunt.omp.media.audio.PlayQueue;
 import com.vunyunt.omp.persistence.AppConfig;
 import com.vunyunt.omp.persistence.PersistenceManager;
+import com.vunyunt.omp.persistence.library.FacetCount;
+import com.vunyunt.omp.persistence.library.Facets;
 import com.vunyunt.omp.persistence.library.Music;
+import com.vunyunt.omp.persistence.library.MusicSort;
 import com.vunyunt.omp.persistence.library.OsuMusicLibrary;
+import com.vunyunt.omp.persistence.library.SearchCursor;
 import com.vunyunt.omp.visualization.VisualizationEngine;
+import com.vunyunt.omp.visualization.storyboard.Storyboard;
 import com.vunyunt.omp.visualization.storyboard.StoryboardVE;
 
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.event.Event;
 import javafx.event.EventHandler;
@@ -28,6 +42,7 @@ import javafx.scene.canvas.Canvas;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.Slider;
@@ -35,6 +50,7 @@ import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.layout.AnchorPane;
+import javafx.scene.media.Media;
 import javafx.stage.DirectoryChooser;
 import javafx.util.Callback;
 
@@ -47,16 +63,56 @@ public class MainWindow implements Initializable
 
 	private AudioPlayer mAudioPlayer;
 	private StoryboardVE mStoryboard;
+	private SearchService mSearchService;
+	private PlaybackWarmup mWarmup;
+
+	/**
+	 * List the play queue was built from, whose musics added later are queued as well
+	 */
+	private ObservableList<Music> mQueueSource;
+	private ListChangeListener<Music> mQueueSourceListener;
 
 	@FXML AnchorPane mRoot;
 	@FXML ListView<Music> mMusicListView;
 	@FXML Button mPlayBtn;
 	@FXML Button mPauseBtn;
 	@FXML Button mStopBtn;
+	@FXML Button mNextBtn;
+	@FXML ComboBox<PlayQueue.Mode> mPlayMode;
 	@FXML Slider mPlaybackProgress;
 	@FXML TextField mSearchText;
+	@FXML ComboBox<String> mFacetDimension;
+	@FXML ListView<FacetCount> mFacetListView;
+	@FXML ComboBox<MusicSort> mSortOrder;
 	@FXML Canvas mVisualizationCanvas;
 
+	/**
+	 * Amount of rows before the end of the search results at which the next page is fetched
+	 */
+	private static final int PREFETCH_DISTANCE = 20;
+
+	/**
+	 * Cursor and loaded pages of the current search, null if not searching
+	 */
+	private SearchCursor mSearchCursor;
+	private ObservableList<Music> mSearchResults;
+	private boolean mFetchingPage = false;
+
+	/**
+	 * Time a music needs to be hovered before it is warmed up, so that moving the mouse across the list does not warm up every music passed over
+	 */
+	private static final long HOVER_WARMUP_MILLIS = 200;
+
+	/**
+	 * Item of {@link MainWindow#mFacetDimension} listing no facet, to browse all musics
+	 */
+	private static final String FACET_ALL = "All musics";
+
+	/**
+	 * Facet value selected, the musics listed are narrowed to it. Null if none is selected.
+	 */
+	private FacetCount mFacet;
+
 	/**
 	 * Indicates if the change in the playback progress slider is caused by progress tracking
 	 */
@@ -67,6 +123,35 @@ public class MainWindow implements Initializable
 	{
 		mAudioPlayer = new AudioPlayer();
 		mStoryboard = new StoryboardVE(mVisualizationCanvas);
+		mStoryboard.setClock(mAudioPlayer.getClock());
+		mWarmup = new PlaybackWarmup(mStoryboard, mPersistence.getAppConfig().warmupCacheMB * 1024L * 1024L, new Consumer<Music>()
+		{
+			@Override
+			public void accept(Music m)
+			{
+				// Search results only carry the fields needed for display
+				mMusicLibrary.loadMusic(m);
+			}
+		});
+		mAudioPlayer.setMediaProvider(new Function<Music, Media>()
+		{
+			@Override
+			public Media apply(Music m)
+			{
+				return mWarmup.getMedia(m);
+			}
+		});
+		mSearchService = new SearchService(mPersistence.getAppConfig().searchDebounceMillis, new BiConsumer<SearchCursor, List<Music>>()
+		{
+			@Override
+			public void accept(SearchCursor cursor, List<Music> firstPage)
+			{
+				mSearchCursor = cursor;
+				mFetchingPage = false;
+				mSearchResults = FXCollections.observableArrayList(firstPage);
+				mMusicListView.setItems(mSearchResults);
+			}
+		});
 
 		mMusicListView.setCellFactory(new Callback<ListView<Music>, ListCell<Music>>()
 		{
@@ -86,6 +171,13 @@ public class MainWindow implements Initializable
 						}
 						else
 						{
+							// Fetches the next page of search results when scrolled near the end
+							if(getListView().getItems() == mSearchResults
+									&& getIndex() >= mSearchResults.size() - PREFETCH_DISTANCE)
+							{
+								fetchMoreResults();
+							}
+
 							try
 							{
 								setText(item.getName());
@@ -105,17 +197,81 @@ public class MainWindow implements Initializable
 					}
 				};
 
+				cell.setOnMouseEntered(new EventHandler<MouseEvent>()
+				{
+					@Override
+					public void handle(MouseEvent event)
+					{
+						if(cell.getItem() != null)
+						{
+							mWarmup.warm(cell.getItem(), HOVER_WARMUP_MILLIS);
+						}
+					}
+				});
+
 				return cell;
 			}
 		});
 		mMusicListView.setItems(mPersistence.getMusicLibrary().getMusicsObservable());
+		mMusicListView.getSelectionModel().selectedItemProperty().addListener(new ChangeListener<Music>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends Music> observable, Music oldValue, Music newValue)
+			{
+				if(newValue != null)
+				{
+					mWarmup.warm(newValue, 0);
+				}
+			}
+		});
 
 		mPlaybackProgress.maxProperty().bind(mAudioPlayer.getLengthProperty());
+		mAudioPlayer.getPlayingProperty().addListener(new ChangeListener<Music>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends Music> observable, Music oldValue, Music newValue)
+			{
+				showStoryboard(newValue);
+			}
+		});
+
+		mQueueSourceListener = new ListChangeListener<Music>()
+		{
+			@Override
+			public void onChanged(Change<? extends Music> c)
+			{
+				// Such as the next page of search results, or musics published while importing
+				while(c.next())
+				{
+					if(c.wasAdded() && !c.wasReplaced())
+					{
+						mAudioPlayer.extendQueue(new ArrayList<>(c.getAddedSubList()));
+					}
+				}
+			}
+		};
+
+		mPlayMode.getItems().addAll(PlayQueue.Mode.values());
+		mPlayMode.setValue(mAudioPlayer.getPlayMode());
+		mPlayMode.valueProperty().addListener(new ChangeListener<PlayQueue.Mode>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends PlayQueue.Mode> observable, PlayQueue.Mode oldValue, PlayQueue.Mode newValue)
+			{
+				mAudioPlayer.setPlayMode(newValue);
+			}
+		});
 		mAudioPlayer.getPlaybackProgress().addListener(new ChangeListener<Number>()
 		{
 			@Override
 			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue)
 			{
+				// The slider follows the drag, not the player, while dragged
+				if(mPlaybackProgress.isValueChanging())
+				{
+					return;
+				}
+
 				progressTracking = true;
 				mPlaybackProgress.setValue(newValue.doubleValue());
 				progressTracking = false;
@@ -142,18 +298,105 @@ public class MainWindow implements Initializable
 				search(newValue);
 			}
 		});
+
+		mFacetDimension.getItems().add(FACET_ALL);
+		mFacetDimension.getItems().addAll(Facets.DIMENSIONS);
+		mFacetDimension.setValue(FACET_ALL);
+		mFacetDimension.valueProperty().addListener(new ChangeListener<String>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
+			{
+				showFacets(newValue);
+			}
+		});
+
+		mSortOrder.getItems().addAll(MusicSort.values());
+		mSortOrder.setValue(MusicSort.RELEVANCE);
+		mSortOrder.valueProperty().addListener(new ChangeListener<MusicSort>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends MusicSort> observable, MusicSort oldValue, MusicSort newValue)
+			{
+				search(mSearchText.getText());
+			}
+		});
+
+		mFacetListView.getSelectionModel().selectedItemProperty().addListener(new ChangeListener<FacetCount>()
+		{
+			@Override
+			public void changed(ObservableValue<? extends FacetCount> observable, FacetCount oldValue, FacetCount newValue)
+			{
+				mFacet = newValue;
+				search(mSearchText.getText());
+			}
+		});
+	}
+
+	/**
+	 * Lists the values of a facet dimension, counted in the background
+	 */
+	private void showFacets(String dimension)
+	{
+		mFacetListView.getItems().clear();
+		if(dimension == null || FACET_ALL.equals(dimension))
+		{
+			return;
+		}
+
+		mSearchService.countFacets(mMusicLibrary, dimension, new Consumer<List<FacetCount>>()
+		{
+			@Override
+			public void accept(List<FacetCount> counts)
+			{
+				// Dropped if another dimension is selected meanwhile
+				if(dimension.equals(mFacetDimension.getValue()))
+				{
+					mFacetListView.setItems(FXCollections.observableArrayList(counts));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the background services of the window, once it is closed
+	 */
+	public void close()
+	{
+		mSearchService.shutdown();
+		mWarmup.shutdown();
 	}
 
 	@FXML
 	public void onChooseOsuPath(ActionEvent e)
 	{
-		AppConfig cfg = mPersistence.getAppConfig();
-		cfg.osuPath = chooseOsuPath().getAbsolutePath();
-		cfg.clearLucene = true;
-		new Alert(AlertType.INFORMATION, "The application needs to be restart to apply changes. Closing application now.", ButtonType.OK).showAndWait();
-		mPersistence.saveConfig();
-		Platform.exit();
-		System.exit(0);
+		File osuPath = chooseOsuPath();
+		if(osuPath == null)
+		{
+			return;
+		}
+
+		try
+		{
+			mPersistence.changeOsuPath(osuPath);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			new Alert(AlertType.ERROR, "Unable to find Songs folder in the given Osu! path.", ButtonType.OK).showAndWait();
+			return;
+		}
+		catch (IOException ex)
+		{
+			LOGGER.error("Unable to open the music library");
+			LOGGER.debug(ex.getMessage());
+			new Alert(AlertType.ERROR, "Unable to open the music library.", ButtonType.OK).showAndWait();
+			return;
+		}
+
+		mMusicLibrary = mPersistence.getMusicLibrary();
+		mSearchText.clear();
+		mFacetDimension.setValue(FACET_ALL);
+		mMusicListView.setItems(mMusicLibrary.getMusicsObservable());
 	}
 
 	private File chooseOsuPath()
@@ -177,17 +420,51 @@ public class MainWindow implements Initializable
 		Music m = mMusicListView.getSelectionModel().getSelectedItem();
 		if(m != null)
 		{
+			// Search results only carry the fields needed for display
+			mMusicLibrary.loadMusic(m);
+			// Played first, so that a music pre-rolled as the next one is not dropped by the new queue
 			mAudioPlayer.play(m);
-			try
+
+			ObservableList<Music> items = mMusicListView.getItems();
+			mAudioPlayer.setQueue(items, m);
+			if(mQueueSource != null)
 			{
-				mStoryboard.loadStoryboard(m);
+				mQueueSource.removeListener(mQueueSourceListener);
 			}
-			catch (IOException e1)
+			mQueueSource = items;
+			items.addListener(mQueueSourceListener);
+		}
+	}
+
+	@FXML
+	public void onNextAction(ActionEvent e)
+	{
+		mAudioPlayer.next();
+	}
+
+	/**
+	 * Shows the storyboard of the music playing, once prepared
+	 */
+	private void showStoryboard(Music m)
+	{
+		if(m == null)
+		{
+			return;
+		}
+
+		mWarmup.getStoryboard(m, new Consumer<Storyboard>()
+		{
+			@Override
+			public void accept(Storyboard storyboard)
 			{
-				LOGGER.debug(e1.getMessage());
+				// Dropped if another music plays meanwhile
+				if(m == mAudioPlayer.getPlayingProperty().get())
+				{
+					mStoryboard.showStoryboard(storyboard);
+					mStoryboard.play();
+				}
 			}
-			mStoryboard.play(mAudioPlayer.getPlaybackProgress());
-		}
+		});
 	}
 
 	@FXML
@@ -204,13 +481,44 @@ public class MainWindow implements Initializable
 
 	private void search(String query)
 	{
-		if(query.trim().length() > 0)
+		// The whole library is listed as is unless searched, narrowed or sorted
+		MusicSort sort = mSortOrder.getValue();
+		if(query.trim().length() > 0 || mFacet != null || sort != MusicSort.RELEVANCE)
 		{
-			this.mMusicListView.setItems(mPersistence.getMusicLibrary().search(query));
+			mSearchService.search(mMusicLibrary, query, mFacet, sort);
 		}
 		else
 		{
+			mSearchService.cancel();
+			mSearchCursor = null;
+			mSearchResults = null;
 			this.mMusicListView.setItems(this.mMusicLibrary.getMusicsObservable());
 		}
 	}
+
+	/**
+	 * Appends the next page of the current search to the list
+	 */
+	private void fetchMoreResults()
+	{
+		SearchCursor cursor = mSearchCursor;
+		if(cursor == null || mFetchingPage || !cursor.hasMore())
+		{
+			return;
+		}
+
+		mFetchingPage = true;
+		mSearchService.fetchMore(cursor, new Consumer<List<Music>>()
+		{
+			@Override
+			public void accept(List<Music> page)
+			{
+				if(cursor == mSearchCursor)
+				{
+					mFetchingPage = false;
+					mSearchResults.addAll(page);
+				}
+			}
+		});
+	}
 }
@@ -0,0 +1,344 @@
+package com.vunyunt.omp.ui;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.vunyunt.omp.persistence.PersistenceManager;
+import com.vunyunt.omp.persistence.library.Music;
+import com.vunyunt.omp.visualization.storyboard.Storyboard;
+import com.vunyunt.omp.visualization.storyboard.StoryboardVE;
+
+import javafx.application.Platform;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaException;
+
+/**
+ * Prepares the media and the storyboard of musics likely to be played next, off the
+ * JavaFX thread, so that playing them does not wait for the media to open or for the
+ * beatmap to be parsed and its images decoded.
+ *
+ * Musics are warmed up when selected or hovered in the list, and stay cached while
+ * recently played. The cache is a LRU bounded by an estimate of the memory used by
+ * the decoded images; the least recently used musics are evicted first.
+ *
+ * Warming up is speculative: each warm up supersedes the previous one not started yet,
+ * so moving through the list prepares at most the music being prepared and the last
+ * one. The music playing is prepared on its own thread, without waiting behind them.
+ *
+ * Must be called on the JavaFX thread.
+ *
+ * @author vun
+ *
+ */
+public class PlaybackWarmup
+{
+	private static final Logger LOGGER = Logger.getLogger(PlaybackWarmup.class);
+
+	/**
+	 * Estimated heap used by a Media, which holds no audio data
+	 */
+	private static final long MEDIA_SIZE = 16 * 1024;
+
+	private static class Entry
+	{
+		private Music mMusic;
+		private volatile Media mMedia;
+		private volatile Storyboard mStoryboard;
+		private volatile boolean mStoryboardFailed = false;
+		private long mSize = MEDIA_SIZE;
+	}
+
+	private PersistenceManager mPersistenceManager = PersistenceManager.getInstance();
+	private StoryboardVE mStoryboardVE;
+
+	/**
+	 * Loads the fields of a music missing from search results, on the warm-up threads
+	 */
+	private Consumer<Music> mLoader;
+
+	private long mBudget;
+	private long mSize = 0;
+
+	/**
+	 * Entries by music ID, in access order
+	 */
+	private Map<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Prepares the musics selected or hovered, one at a time
+	 */
+	private ScheduledExecutorService mExecutor;
+
+	/**
+	 * Prepares the music playing. An entry is locked while prepared, so a music being
+	 * warmed up is never prepared twice at once.
+	 */
+	private ExecutorService mPlayingExecutor;
+
+	/**
+	 * Warm up not started yet, superseded by the next one
+	 */
+	private ScheduledFuture<?> mPending;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	/**
+	 * @param storyboardVE	Engine preparing the storyboards
+	 * @param budget		Estimated memory the cached musics may use, in bytes
+	 * @param loader		{@link PlaybackWarmup#mLoader}
+	 */
+	public PlaybackWarmup(StoryboardVE storyboardVE, long budget, Consumer<Music> loader)
+	{
+		mStoryboardVE = storyboardVE;
+		mBudget = budget;
+		mLoader = loader;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Playback warm-up");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mPlayingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Playback warm-up (playing)");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Prepares a music in the background unless cached already. Cancels the previous warm
+	 * up if not started yet.
+	 *
+	 * @param delayMillis	Time to wait before preparing, so that only the last music hovered is prepared
+	 */
+	public void warm(Music music, long delayMillis)
+	{
+		Entry e = getEntry(music);
+		if(e.mMedia != null && (e.mStoryboard != null || e.mStoryboardFailed))
+		{
+			return;
+		}
+
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				prepare(e);
+			}
+		};
+
+		if(mPending != null)
+		{
+			mPending.cancel(false);
+		}
+		mPending = mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the media of a music, created on the spot if not prepared yet
+	 *
+	 * @throws MediaException If the media cannot be opened
+	 */
+	public Media getMedia(Music music)
+	{
+		Entry e = getEntry(music);
+		Media media = e.mMedia;
+		if(media != null)
+		{
+			mHits++;
+			LOGGER.debug("Warm media for " + music.getName() + ", " + mHits + " hits, " + mMisses + " misses");
+			return media;
+		}
+
+		mMisses++;
+		LOGGER.debug("Cold media for " + music.getName() + ", " + mHits + " hits, " + mMisses + " misses");
+		media = createMedia(music);
+		e.mMedia = media;
+		return media;
+	}
+
+	/**
+	 * Gets the storyboard of a music, prepared in the background if not prepared yet.
+	 * Meant for the music playing, prepared ahead of the musics warmed up.
+	 *
+	 * @param onReady Called on the JavaFX thread with the storyboard, null if it cannot be loaded
+	 */
+	public void getStoryboard(Music music, Consumer<Storyboard> onReady)
+	{
+		Entry e = getEntry(music);
+		if(e.mStoryboard != null || e.mStoryboardFailed)
+		{
+			onReady.accept(e.mStoryboard);
+			return;
+		}
+
+		mPlayingExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					prepare(e);
+				}
+				finally
+				{
+					// Called even if loading the music failed, with no storyboard then
+					Platform.runLater(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							onReady.accept(e.mStoryboard);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	public void shutdown()
+	{
+		mExecutor.shutdownNow();
+		mPlayingExecutor.shutdownNow();
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Gets the entry of a music, created if missing, and marks it as the most recently used
+	 */
+	private Entry getEntry(Music music)
+	{
+		Entry e = mEntries.get(music.getId());
+		if(e == null)
+		{
+			e = new Entry();
+			e.mMusic = music;
+			mEntries.put(music.getId(), e);
+			mSize += e.mSize;
+			evict();
+		}
+		return e;
+	}
+
+	/**
+	 * Prepares what is missing in an entry, on a warm-up thread. Waits for the entry if
+	 * it is being prepared on the other thread.
+	 */
+	private void prepare(Entry e)
+	{
+		synchronized(e)
+		{
+			prepareLocked(e);
+		}
+	}
+
+	private void prepareLocked(Entry e)
+	{
+		if(e.mMedia != null && (e.mStoryboard != null || e.mStoryboardFailed))
+		{
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		mLoader.accept(e.mMusic);
+		if(e.mMedia == null)
+		{
+			try
+			{
+				e.mMedia = createMedia(e.mMusic);
+			}
+			catch (MediaException ex)
+			{
+				// Reported when played
+				LOGGER.debug("Unable to open media of " + e.mMusic.getName() + ": " + ex.getMessage());
+			}
+		}
+
+		if(e.mStoryboard == null && !e.mStoryboardFailed)
+		{
+			try
+			{
+				e.mStoryboard = mStoryboardVE.prepareStoryboard(e.mMusic);
+			}
+			catch (IOException ex)
+			{
+				e.mStoryboardFailed = true;
+				LOGGER.debug(ex.getMessage());
+			}
+		}
+		LOGGER.debug("Warmed up " + e.mMusic.getName() + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+
+		Storyboard storyboard = e.mStoryboard;
+		if(storyboard != null)
+		{
+			Platform.runLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					resize(e, MEDIA_SIZE + storyboard.getMemorySize());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Updates the size of an entry once prepared, evicting other entries over the budget
+	 */
+	private void resize(Entry e, long size)
+	{
+		if(mEntries.get(e.mMusic.getId()) != e)
+		{
+			// Evicted meanwhile
+			return;
+		}
+
+		mSize += size - e.mSize;
+		e.mSize = size;
+		evict();
+	}
+
+	/**
+	 * Evicts the least recently used entries until within the budget, always keeping the most recent
+	 */
+	private void evict()
+	{
+		Iterator<Entry> it = mEntries.values().iterator();
+		while(mSize > mBudget && mEntries.size() > 1)
+		{
+			Entry e = it.next();
+			it.remove();
+			mSize -= e.mSize;
+			LOGGER.debug("Evicted " + e.mMusic.getName() + " from warm-up cache, " + mSize / 1024 + "KB cached");
+		}
+	}
+
+	private Media createMedia(Music music)
+	{
+		return new Media(music.getAudioFile(mPersistenceManager).toURI().toASCIIString());
+	}
+}
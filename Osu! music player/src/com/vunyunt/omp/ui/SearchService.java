@@ -0,0 +1,250 @@
+package com.vunyunt.omp.ui;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.vunyunt.omp.persistence.library.FacetCount;
+import com.vunyunt.omp.persistence.library.Music;
+import com.vunyunt.omp.persistence.library.MusicSort;
+import com.vunyunt.omp.persistence.library.OsuMusicLibrary;
+import com.vunyunt.omp.persistence.library.SearchCursor;
+
+import javafx.application.Platform;
+
+/**
+ * Runs search-as-you-type queries off the JavaFX thread.
+ *
+ * A query only starts once the text has not changed for the debounce time. Each new
+ * text supersedes the previous one: a query not started yet is cancelled, and the
+ * results of a query already running are dropped. Only the results of the latest
+ * text are published, on the JavaFX thread. Further pages of the results are
+ * fetched on the same thread while the list is scrolled.
+ *
+ * @author vun
+ *
+ */
+public class SearchService
+{
+	private static final Logger LOGGER = Logger.getLogger(SearchService.class);
+
+	private long mDebounceMillis;
+
+	/**
+	 * Called on the JavaFX thread with the cursor and the first page of the latest query
+	 */
+	private BiConsumer<SearchCursor, List<Music>> mOnResults;
+
+	/**
+	 * Single thread, so queries never run concurrently
+	 */
+	private ScheduledExecutorService mExecutor;
+	private ScheduledFuture<?> mPending;
+
+	/**
+	 * Incremented for every new text. A query only publishes if its generation is still the latest.
+	 */
+	private AtomicLong mGeneration = new AtomicLong();
+
+	private long mQueryCount = 0;
+	private long mTotalLatencyNanos = 0;
+	private volatile long mLastLatencyNanos = 0;
+
+	/**
+	 * @param debounceMillis	Time the text needs to be unchanged before it is searched
+	 * @param onResults			{@link SearchService#mOnResults}
+	 */
+	public SearchService(long debounceMillis, BiConsumer<SearchCursor, List<Music>> onResults)
+	{
+		mDebounceMillis = debounceMillis;
+		mOnResults = onResults;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Search");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Searches the given library for the given text once the text is unchanged for the debounce time.
+	 * Must be called on the JavaFX thread.
+	 *
+	 * @param facet	Facet value the musics must have, null to search all musics
+	 * @param sort	Order of the results
+	 */
+	public void search(OsuMusicLibrary library, String query, FacetCount facet, MusicSort sort)
+	{
+		long generation = supersede();
+
+		mPending = mExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(generation != mGeneration.get())
+				{
+					return;
+				}
+
+				long startTime = System.nanoTime();
+				SearchCursor cursor = library.search(query, facet, sort);
+				List<Music> page = fetchPage(cursor);
+				recordLatency(query, System.nanoTime() - startTime);
+
+				Platform.runLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if(generation == mGeneration.get())
+						{
+							mOnResults.accept(cursor, page);
+						}
+					}
+				});
+			}
+		}, mDebounceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fetches the next page of a cursor published by this service.
+	 * The page is dropped if a newer text is searched meanwhile.
+	 * Must be called on the JavaFX thread.
+	 *
+	 * @param onPage Called on the JavaFX thread with the fetched page
+	 */
+	public void fetchMore(SearchCursor cursor, Consumer<List<Music>> onPage)
+	{
+		long generation = mGeneration.get();
+
+		mExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				List<Music> page = generation == mGeneration.get() ? fetchPage(cursor) : Collections.emptyList();
+
+				Platform.runLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if(generation == mGeneration.get())
+						{
+							onPage.accept(page);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Counts the values of a facet dimension off the JavaFX thread.
+	 * Must be called on the JavaFX thread.
+	 *
+	 * @param onCounts Called on the JavaFX thread with the counts
+	 */
+	public void countFacets(OsuMusicLibrary library, String dimension, Consumer<List<FacetCount>> onCounts)
+	{
+		mExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long startTime = System.nanoTime();
+				List<FacetCount> counts = library.getFacetCounts(dimension);
+				LOGGER.debug(String.format("Counted %d values of %s in %.2fms",
+						counts.size(), dimension, (System.nanoTime() - startTime) / 1000000.0));
+
+				Platform.runLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						onCounts.accept(counts);
+					}
+				});
+			}
+		});
+	}
+
+	private List<Music> fetchPage(SearchCursor cursor)
+	{
+		try
+		{
+			return cursor.nextPage();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Unable to search index.");
+			LOGGER.debug(e.getClass().getName() + " - " + e.getMessage());
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Cancels the pending query and drops the results of a running one.
+	 * Must be called on the JavaFX thread.
+	 */
+	public void cancel()
+	{
+		supersede();
+	}
+
+	private long supersede()
+	{
+		if(mPending != null)
+		{
+			mPending.cancel(false);
+			mPending = null;
+		}
+
+		return mGeneration.incrementAndGet();
+	}
+
+	private synchronized void recordLatency(String query, long nanos)
+	{
+		mQueryCount++;
+		mTotalLatencyNanos += nanos;
+		mLastLatencyNanos = nanos;
+		LOGGER.debug(String.format("Search \"%s\" took %.2fms (average %.2fms over %d queries)",
+				query, nanos / 1000000.0, mTotalLatencyNanos / 1000000.0 / mQueryCount, mQueryCount));
+	}
+
+	/**
+	 * Latency of the last query run, in milliseconds
+	 */
+	public double getLastLatencyMillis()
+	{
+		return mLastLatencyNanos / 1000000.0;
+	}
+
+	/**
+	 * Average latency of all queries run, in milliseconds
+	 */
+	public synchronized double getAverageLatencyMillis()
+	{
+		return mQueryCount == 0 ? 0 : mTotalLatencyNanos / 1000000.0 / mQueryCount;
+	}
+
+	public void shutdown()
+	{
+		mExecutor.shutdownNow();
+	}
+}
@@ -2,6 +2,7 @@ package com.vunyunt.omp.visualization;
 
 import java.io.File;
 
+import com.vunyunt.omp.media.audio.PlaybackClock;
 import com.vunyunt.omp.persistence.library.Music;
 
 import javafx.scene.canvas.Canvas;
@@ -14,6 +15,11 @@ public abstract class VisualizationEngine
 	 */
 	private Canvas mCanvas;
 
+	/**
+	 * Time of the music playing, sampled on every frame
+	 */
+	private PlaybackClock mClock;
+
 	/**
 	 * Source file for the music
 	 */
@@ -27,4 +33,14 @@ public abstract class VisualizationEngine
 	 * @return {@link VisualizationEngine#mCanvas}
 	 */
 	public Canvas getCanvas() { return mCanvas; }
+
+	/**
+	 * @return {@link VisualizationEngine#mClock}
+	 */
+	public PlaybackClock getClock() { return mClock; }
+
+	/**
+	 * @see VisualizationEngine#mClock
+	 */
+	public void setClock(PlaybackClock clock) { mClock = clock; }
 }
@@ -3,6 +3,8 @@ package com.vunyunt.omp.visualization.storyboard;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
@@ -11,10 +13,22 @@ public class SpriteStoryboardObject extends StoryboardObject
 {
 	private Image mImage;
 
-	public SpriteStoryboardObject(StoryboardVE storyboardVE, File spriteFile, int timeStart, int timeEnd) throws FileNotFoundException
+	public SpriteStoryboardObject(StoryboardVE storyboardVE, File spriteFile, int timeStart, int timeEnd) throws FileNotFoundException, IOException
 	{
 		super(storyboardVE, timeStart, timeEnd);
-		mImage = new Image(new FileInputStream(spriteFile));
+		try(InputStream in = new FileInputStream(spriteFile))
+		{
+			mImage = new Image(in);
+		}
+	}
+
+	/**
+	 * Decoded pixels, 4 bytes each
+	 */
+	@Override
+	public long getMemorySize()
+	{
+		return (long) mImage.getWidth() * (long) mImage.getHeight() * 4;
 	}
 
 	@Override
@@ -0,0 +1,48 @@
+package com.vunyunt.omp.visualization.storyboard;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.vunyunt.omp.persistence.library.Music;
+
+/**
+ * Storyboard of a music, parsed and with its images decoded, ready to be shown by
+ * {@link StoryboardVE#showStoryboard(Storyboard)}
+ *
+ * @author vun
+ *
+ */
+public class Storyboard
+{
+	private Music mMusic;
+	private List<StoryboardObject> mObjects;
+	private long mMemorySize;
+
+	Storyboard(Music music, List<StoryboardObject> objects)
+	{
+		mMusic = music;
+		mObjects = Collections.unmodifiableList(objects);
+		for (StoryboardObject o : objects)
+		{
+			mMemorySize += o.getMemorySize();
+		}
+	}
+
+	public Music getMusic()
+	{
+		return mMusic;
+	}
+
+	public List<StoryboardObject> getObjects()
+	{
+		return mObjects;
+	}
+
+	/**
+	 * Estimated heap used by the decoded images, in bytes
+	 */
+	public long getMemorySize()
+	{
+		return mMemorySize;
+	}
+}
@@ -36,6 +36,14 @@ public abstract class StoryboardObject
 	 */
 	public abstract void draw(GraphicsContext gc, int timeMilli);
 
+	/**
+	 * Estimated heap used by the object, in bytes
+	 */
+	public long getMemorySize()
+	{
+		return 0;
+	}
+
 	/**
 	 * @see StoryboardObject#mTimeStart
 	 */
@@ -5,7 +5,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.SortedSet;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -13,12 +15,12 @@ import java.util.concurrent.ConcurrentSkipListSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 
+import com.vunyunt.omp.media.audio.PlaybackClock;
 import com.vunyunt.omp.persistence.PersistenceManager;
 import com.vunyunt.omp.persistence.library.Music;
 import com.vunyunt.omp.visualization.VisualizationEngine;
 
 import javafx.animation.AnimationTimer;
-import javafx.beans.value.ObservableDoubleValue;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
@@ -59,8 +61,35 @@ public class StoryboardVE extends VisualizationEngine
 	public void loadStoryboard(Music music) throws FileNotFoundException, IOException
 	{
 		mObjects.clear();
+		showStoryboard(prepareStoryboard(music));
+	}
+
+	/**
+	 * Shows a prepared storyboard in place of the current one
+	 *
+	 * @param storyboard Storyboard to show, null to show none
+	 */
+	public void showStoryboard(Storyboard storyboard)
+	{
+		mObjects.clear();
+		if(storyboard != null)
+		{
+			mMusic = storyboard.getMusic();
+			mObjects.addAll(storyboard.getObjects());
+		}
+	}
+
+	/**
+	 * Parses the storyboard associated with a music file and decodes its images, without
+	 * showing it. May be called from any thread.
+	 *
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public Storyboard prepareStoryboard(Music music) throws FileNotFoundException, IOException
+	{
+		List<StoryboardObject> objects = new ArrayList<>();
 		File beatmapFile = music.getBeatmapFile(mPersistenceManager);
-		mMusic = music;
 
 		// Process beatmap file line by line
 		LineIterator it = FileUtils.lineIterator(beatmapFile);
@@ -85,45 +114,43 @@ public class StoryboardVE extends VisualizationEngine
 			switch(tokens[0].trim().toLowerCase())
 			{
 			case "0": // Background image
-				mObjects.add(new SpriteStoryboardObject(this, getFileInFolder(tokens[2].replaceAll("\"", "")), 0, Integer.MAX_VALUE));
+				objects.add(new SpriteStoryboardObject(this, music.getFile(mPersistenceManager, tokens[2].replaceAll("\"", "")), 0, Integer.MAX_VALUE));
 				break;
 			}
 		}
 
 		it.close();
-	}
-
-	private File getFileInFolder(String fileName)
-	{
-		return mMusic.getFile(mPersistenceManager, fileName);
+		return new Storyboard(music, objects);
 	}
 
 	private AnimationTimer mAnimationTimer;
 
 	/**
-	 * Starts playback of storyboard
-	 *
-	 * @param timesMillis Time of the music playback in milliseconds
+	 * Starts playback of storyboard, following the time of the clock set by
+	 * {@link VisualizationEngine#setClock(PlaybackClock)}
 	 */
-	public void play(ObservableDoubleValue timeMillis)
+	public void play()
 	{
 		Canvas canvas = getCanvas();
 		GraphicsContext gc = canvas.getGraphicsContext2D();
 
 		if(mAnimationTimer == null)
 		{
-			AnimationTimer mAnimationTimer = new AnimationTimer()
+			mAnimationTimer = new AnimationTimer()
 			{
 				@Override
 				public void handle(long now)
 				{
+					PlaybackClock clock = getClock();
+					int timeMillis = clock != null ? (int) clock.getTimeMillis(now) : 0;
+
 					gc.save();
 					gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
 
 					playAreaTransform(canvas);
 					for (StoryboardObject storyboardObject : mObjects)
 					{
-						storyboardObject.draw(gc, (int) timeMillis.get());
+						storyboardObject.draw(gc, timeMillis);
 					}
 
 					gc.restore();